@@ -0,0 +1,60 @@
+package client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// One request through the in-flight table, either answered or expired
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InFlightTableBenchmark {
+    @Param({"1024", "65536"})
+    public int capacity;
+
+    private InFlightTable table;
+
+    private long expired = 0;
+
+    private int seq = 0;
+
+    @Setup
+    public void setUp() {
+        table = new InFlightTable(capacity, (s, nanos) -> expired++);
+    }
+
+    private int nextSeq() {
+        seq = (seq + 1) & Integer.MAX_VALUE;
+        if (seq == 0) {
+            seq = 1;
+        }
+        return seq;
+    }
+
+    @Benchmark
+    public long putMatch() {
+        int s = nextSeq();
+        table.put(s, s);
+        return table.match(s);
+    }
+
+    @Benchmark
+    public boolean putExpire() {
+        int s = nextSeq();
+        table.put(s, s);
+        return table.expire(s);
+    }
+
+    // A late reply for a slot that was already reused
+    @Benchmark
+    public long matchMiss() {
+        return table.match(nextSeq());
+    }
+}
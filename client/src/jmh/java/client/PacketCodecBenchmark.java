@@ -0,0 +1,110 @@
+package client;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Request encoding and reply parsing, the legacy text path as the baseline
+// against the binary packet, and the binary packet with a MAC
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketCodecBenchmark {
+    private final byte[] sendBytes = new byte[Keys.SIZE];
+
+    private final ByteBuffer sendBuf = ByteBuffer.wrap(sendBytes);
+
+    private byte[] textReply;
+
+    private final byte[] binaryReply = new byte[Keys.SIZE];
+
+    private final ByteBuffer binaryReplyBuf = ByteBuffer.wrap(binaryReply);
+
+    private int seq = 0;
+
+    private long nanos = 1_546_300_800_000_000_000L;
+
+    private Keys.Key key;
+
+    @Setup
+    public void setUp() {
+        long t3 = nanos;
+        long t2 = t3 + 150_000;
+        long t1 = t2 + 20_000;
+        textReply = (1234 + " " + String.format("%.6f", t3 / 1e9)
+                + " " + String.format("%.6f", t2 / 1e9)
+                + " " + String.format("%.6f", t1 / 1e9)).getBytes();
+
+        Packet.encodeRequest(binaryReplyBuf, 1234, t3);
+        binaryReplyBuf.put(Packet.MODE_OFFSET, Packet.MODE_RESPONSE);
+        binaryReplyBuf.put(Packet.STRATUM_OFFSET, (byte) 1);
+        binaryReplyBuf.putLong(Packet.RECEIVE_OFFSET, t2);
+        binaryReplyBuf.putLong(Packet.TRANSMIT_OFFSET, t1);
+
+        key = Keys.parse(List.of("1 000102030405060708090a0b0c0d0e0f")).get(1);
+        Keys.sign(key, binaryReplyBuf);
+    }
+
+    // As Client.send() builds a --text request
+    @Benchmark
+    public byte[] encodeText() {
+        nanos += 1000;
+        String synchMsg = ++seq + " " + String.format("%.6f", nanos / 1e9);
+        return synchMsg.getBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() {
+        nanos += 1000;
+        Packet.encodeRequest(sendBuf, ++seq, nanos);
+        return sendBuf;
+    }
+
+    // As Client.send() builds a request with --key
+    @Benchmark
+    public ByteBuffer encodeBinarySigned() {
+        nanos += 1000;
+        Packet.encodeRequest(sendBuf, ++seq, nanos);
+        Keys.sign(key, sendBuf);
+        return sendBuf;
+    }
+
+    // As ClientReceiver parses a --text reply
+    @Benchmark
+    public void decodeText(Blackhole bh) {
+        String msg = new String(textReply, 0, textReply.length).trim();
+        String[] msgParts = msg.split(" ");
+        bh.consume(Integer.parseInt(msgParts[0]));
+        bh.consume(Math.round(Double.parseDouble(msgParts[1]) * 1e9));
+        bh.consume(Math.round(Double.parseDouble(msgParts[2]) * 1e9));
+        bh.consume(Math.round(Double.parseDouble(msgParts[3]) * 1e9));
+    }
+
+    @Benchmark
+    public void decodeBinary(Blackhole bh) {
+        bh.consume(Packet.isResponse(binaryReplyBuf, Packet.SIZE));
+        bh.consume(Packet.seq(binaryReplyBuf));
+        bh.consume(Packet.origin(binaryReplyBuf));
+        bh.consume(Packet.receive(binaryReplyBuf));
+        bh.consume(Packet.transmit(binaryReplyBuf));
+    }
+
+    @Benchmark
+    public void decodeBinaryVerified(Blackhole bh) {
+        bh.consume(Keys.verify(key, binaryReplyBuf, Keys.SIZE));
+        bh.consume(Packet.isResponse(binaryReplyBuf, Keys.SIZE));
+        bh.consume(Packet.seq(binaryReplyBuf));
+        bh.consume(Packet.origin(binaryReplyBuf));
+        bh.consume(Packet.receive(binaryReplyBuf));
+        bh.consume(Packet.transmit(binaryReplyBuf));
+    }
+}
@@ -0,0 +1,63 @@
+package client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// ClientReceiver.processTime for one reply: statistics, clock filter,
+// selection over the servers, discipline and histograms. The log writer is
+// not started, so samples past its capacity are counted as dropped.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProcessTimeBenchmark {
+    @Param({"1", "4"})
+    public int servers;
+
+    private Client client;
+
+    private ClientReceiver receiver;
+
+    private long t3 = Packet.nowNanos();
+
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        StringBuilder addresses = new StringBuilder("127.0.0.1");
+        for (int i = 1; i < servers; i++) {
+            addresses.append(",127.0.0.").append(i + 1);
+        }
+        Config config = Config.parse(new String[] {addresses.toString(), "0", "--port=0"});
+        client = new Client(config);
+        client.scheduler = new PollScheduler(client, config.intervalMs, config.burst, config.spin,
+                config.adaptive, config.minPoll, config.maxPoll, false);
+        receiver = new ClientReceiver(client, config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.getSocket().close();
+    }
+
+    @Benchmark
+    public void processTime() {
+        Peer peer = client.peers[next];
+        next = next + 1 == client.peers.length ? 0 : next + 1;
+
+        // 150 us out, 20 us in the server, 130 us back, with a little jitter
+        t3 += 1_000_000;
+        long t2 = t3 + 150_000 + (t3 & 0x3fff);
+        long t1 = t2 + 20_000;
+        long t0 = t1 + 130_000;
+        receiver.processTime(peer, peer.nextSeq(), t3, t2, t1, t0, Sample.STAMP_USER);
+    }
+}
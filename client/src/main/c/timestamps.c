@@ -0,0 +1,83 @@
+/*
+ * JNI shim for client.KernelTimestamps: turns on SO_TIMESTAMPNS and
+ * receives one datagram with recvmsg() so the kernel's receive time comes
+ * back with it. Linux only, built by the client's build-native script.
+ */
+#include <jni.h>
+#include <errno.h>
+#include <string.h>
+#include <time.h>
+#include <arpa/inet.h>
+#include <netinet/in.h>
+#include <sys/socket.h>
+
+JNIEXPORT jint JNICALL
+Java_client_KernelTimestamps_enable(JNIEnv *env, jclass cls, jint fd)
+{
+    int on = 1;
+    if (setsockopt(fd, SOL_SOCKET, SO_TIMESTAMPNS, &on, sizeof(on)) != 0) {
+        return -errno;
+    }
+    return 0;
+}
+
+/*
+ * Non-blocking receive into a direct buffer. Returns the datagram length,
+ * 0 when nothing is queued or -errno. meta receives the kernel timestamp
+ * in ns since epoch (0 if the kernel gave none), the IPv4 source address
+ * (-1 for other families) and the source port.
+ */
+JNIEXPORT jint JNICALL
+Java_client_KernelTimestamps_receive(JNIEnv *env, jclass cls, jint fd, jobject buf,
+                                     jint capacity, jlongArray meta)
+{
+    void *data = (*env)->GetDirectBufferAddress(env, buf);
+    if (data == NULL) {
+        return -EINVAL;
+    }
+
+    struct sockaddr_storage from;
+    char control[CMSG_SPACE(sizeof(struct timespec))];
+    struct iovec iov = { data, (size_t) capacity };
+    struct msghdr msg;
+    memset(&msg, 0, sizeof(msg));
+    msg.msg_name = &from;
+    msg.msg_namelen = sizeof(from);
+    msg.msg_iov = &iov;
+    msg.msg_iovlen = 1;
+    msg.msg_control = control;
+    msg.msg_controllen = sizeof(control);
+
+    ssize_t n = recvmsg(fd, &msg, MSG_DONTWAIT);
+    if (n < 0) {
+        return errno == EAGAIN || errno == EWOULDBLOCK ? 0 : -errno;
+    }
+
+    jlong out[3] = { 0, -1, 0 };
+    for (struct cmsghdr *c = CMSG_FIRSTHDR(&msg); c != NULL; c = CMSG_NXTHDR(&msg, c)) {
+        if (c->cmsg_level == SOL_SOCKET && c->cmsg_type == SCM_TIMESTAMPNS) {
+            struct timespec ts;
+            memcpy(&ts, CMSG_DATA(c), sizeof(ts));
+            out[0] = (jlong) ts.tv_sec * 1000000000LL + ts.tv_nsec;
+        }
+    }
+
+    if (from.ss_family == AF_INET) {
+        struct sockaddr_in *in = (struct sockaddr_in *) &from;
+        out[1] = ntohl(in->sin_addr.s_addr);
+        out[2] = ntohs(in->sin_port);
+    }
+    else if (from.ss_family == AF_INET6) {
+        /* Java binds dual stack sockets, IPv4 peers arrive v4-mapped */
+        struct sockaddr_in6 *in6 = (struct sockaddr_in6 *) &from;
+        if (IN6_IS_ADDR_V4MAPPED(&in6->sin6_addr)) {
+            uint32_t v4;
+            memcpy(&v4, &in6->sin6_addr.s6_addr[12], sizeof(v4));
+            out[1] = ntohl(v4);
+        }
+        out[2] = ntohs(in6->sin6_port);
+    }
+
+    (*env)->SetLongArrayRegion(env, meta, 0, 3, out);
+    return (jint) n;
+}
@@ -0,0 +1,174 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Per packet records are queued by the hot path and formatted, batched and
+// written by a background thread, so disk and console latency never block
+// the threads taking timestamps.
+public class AsyncLog<T> extends Thread {
+    public interface Formatter<T> {
+        void format(T record, StringBuilder out);
+    }
+
+    private final static int FLUSH_CHARS = 16 * 1024;
+
+    private final static long FLUSH_NANOS = 200_000_000L;
+
+    private final static long IDLE_PARK_NANOS = 1_000_000L;
+
+    private final RecordQueue<T> queue;
+
+    private final Formatter<T> formatter;
+
+    private final FileChannel channel;
+
+    private final boolean console;
+
+    private final StringBuilder batch = new StringBuilder(FLUSH_CHARS * 2);
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+    private final ByteBuffer out = ByteBuffer.allocateDirect(FLUSH_CHARS * 4);
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    // file may be null to only write to the console
+    public AsyncLog(String name, String file, boolean console, int capacity, Formatter<T> formatter) {
+        super(name);
+        setDaemon(true);
+        this.queue = new RecordQueue<>(capacity);
+        this.formatter = formatter;
+        this.console = console;
+
+        FileChannel fc = null;
+        if (file != null) {
+            try {
+                fc = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: " + e.getMessage());
+            }
+        }
+        this.channel = fc;
+    }
+
+    // Writes text straight through, for headers and other one-off output
+    public synchronized void writeNow(String text) {
+        batch.append(text);
+        flush();
+    }
+
+    public boolean log(T record) {
+        if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void run() {
+        long lastFlush = System.nanoTime();
+        while (running) {
+            boolean drained;
+            synchronized (this) {
+                drained = drain();
+
+                long now = System.nanoTime();
+                if (batch.length() >= FLUSH_CHARS
+                        || (batch.length() > 0 && now - lastFlush >= FLUSH_NANOS)) {
+                    flush();
+                    lastFlush = now;
+                }
+            }
+
+            if (drained) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    // Formats queued records into the batch, returns true once the queue is empty
+    private boolean drain() {
+        T record;
+        while (batch.length() < FLUSH_CHARS && (record = queue.poll()) != null) {
+            formatter.format(record, batch);
+        }
+        return batch.length() < FLUSH_CHARS;
+    }
+
+    private void flush() {
+        if (batch.length() == 0) {
+            return;
+        }
+
+        if (console) {
+            System.out.print(batch);
+            System.out.flush();
+        }
+
+        if (channel != null) {
+            try {
+                CharBuffer chars = CharBuffer.wrap(batch);
+                encoder.reset();
+                while (true) {
+                    CoderResult result = encoder.encode(chars, out, true);
+                    out.flip();
+                    while (out.hasRemaining()) {
+                        channel.write(out);
+                    }
+                    out.clear();
+                    if (!result.isOverflow()) {
+                        break;
+                    }
+                }
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: " + e.getMessage());
+            }
+        }
+
+        batch.setLength(0);
+    }
+
+    // Stops the writer after everything queued so far has been written
+    public void close() {
+        running = false;
+        try {
+            join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            while (!drain() || batch.length() > 0) {
+                flush();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
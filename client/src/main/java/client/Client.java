@@ -1,264 +1,814 @@
 package client;
 
 import java.io.BufferedReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.*;
-import java.time.Instant;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
+// One client session: its own socket, servers, threads and statistics, so
+// several sessions can run side by side in one JVM.
 public class Client {
     private DatagramSocket clientSocket;
 
-    private InetAddress serverAddress;
+    // Non-blocking channel behind clientSocket with --receive=busy, else null
+    private DatagramChannel channel;
 
-    private final static int SERVER_PORT = 4011;
+    private final boolean textFormat;
+
+    private final byte[] sendBytes = new byte[Keys.SIZE];
+
+    private final ByteBuffer sendBuf = ByteBuffer.wrap(sendBytes);
+
+    private DatagramPacket sendPacket;
 
-    private final static int CLIENT_PORT = 4012;
+    private final static int SERVER_PORT = 4011;
 
     private final static String REPORT = "report.log";
 
     private final static String HISTO = "histo.txt";
 
-    private final static int PACKET_TIMEOUT = 2;
+    private final static String HISTO_DATA = "histo.dat";
 
-    private final AtomicInteger seq;
+    // Histograms keep 2 significant digits up to about 18 minutes in ns
+    private final static int HISTO_BITS = 7;
 
-    public static List<Integer> seqSent;
+    private final static long HISTO_HIGHEST = 1L << 40;
 
-    public static List<Double> seqSentTime;
+    private final static int HISTO_STARS = 60;
 
-    public static List<Integer> seqRecv;
+    private final static long WHEEL_TICK_NANOS = 1_000_000L;
 
-    public static List<Integer> seqDropped;
+    private final static int WHEEL_SIZE = 1024;
 
-    public static List<Double> seqDroppedTime;
+    private final static long DRAIN_POLL_NANOS = 10_000_000L;
 
-    public static List<Double> seqRTT;
+    private final static long JOIN_MILLIS = 5000;
 
-    public static List<Double> seqTheta;
+    private final static long STATE_SAVE_NANOS = 60_000_000_000L;
 
-    public static List<Double> smoothedTheta;
+    // A polled server has converged after this many replies in this run
+    private final static int STARTUP_SAMPLES = 4;
 
-    public static List<Double> drift;
+    private final long timeoutNanos;
 
-    public static Map<Double, Integer> histoMap;
+    public Peer[] peers;
 
-    public static int sentPackets;
+    // Listener mode: the multicast stream, the last of peers, else null
+    public Peer multicast;
 
-    public static volatile boolean exitFlag;
+    public TimingWheel wheel;
 
-    public static volatile Lock l;
+    public PollScheduler scheduler;
 
-    public static volatile Condition print;
+    // Disciplined virtual clock, clock.nowNanos() is safe to call from any thread
+    public SyncClock clock;
 
-    public static int expTime;
+    public ClockDiscipline discipline;
 
-    public Client(String serverAddr) {
-        try {
-            this.serverAddress = InetAddress.getByName(serverAddr);
+    // Live view of the session, see --metrics-port
+    public final ClientMetrics metrics;
+
+    private MetricsServer metricsServer;
+
+    // Raw samples for offline replay, null unless --journal is given
+    public Journal journal;
+
+    private final static int DROPS_KEPT = 1000;
+
+    private final static double EWMA_WEIGHT = 0.125;
+
+    public long recvPackets;
+
+    public long lateReplies;
+
+    // Signs every request and is required on every reply, null without --key
+    public Keys.Key key;
+
+    public long unauthenticated;
+
+    public Drops drops;
+
+    public RunningStats rttStats;
+
+    public RunningStats thetaStats;
+
+    public RunningStats driftStats;
+
+    // RTT and offset in nanoseconds, drift in parts per billion
+    public LogHistogram rttHisto;
+
+    public SignedHistogram thetaHisto;
+
+    public SignedHistogram driftHisto;
+
+    public int sentPackets;
+
+    private final long startNanos = System.nanoTime();
+
+    // How long stop() waits for outstanding replies
+    private final long drainNanos;
+
+    // Snapshot reports and clock state saves
+    private Timer timer;
+
+    // Clock state carried between runs, null unless --state is given
+    private final Path stateFile;
+
+    // Receive thread only, when the next state copy is due
+    private long nextStateNanos;
+
+    // Latest copy from the receive thread, written by the timer thread
+    private final AtomicReference<ClockState> pendingState = new AtomicReference<>();
+
+    private final Object stateLock = new Object();
+
+    private long lastStateSaved = 0;
+
+    private int restoredSamples = 0;
+
+    // Released once stop() has written the final report
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    public Client(Config config) {
+        this.textFormat = config.textFormat;
+        this.timeoutNanos = config.timeoutMs * 1_000_000L;
+        this.drainNanos = config.drainMs * 1_000_000L;
+        this.stateFile = config.state != null ? Paths.get(config.state) : null;
+        this.nextStateNanos = System.nanoTime() + STATE_SAVE_NANOS;
+        this.sendPacket = new DatagramPacket(sendBytes, Packet.SIZE);
+
+        metrics = new ClientMetrics(this);
+        InFlightTable.Expired expired = (seq, sentNanos) -> {
+            drops.add(seq, sentNanos / 1e9);
+            metrics.dropped.inc();
+        };
+        // A listener gets one more peer for the multicast stream, it is never polled
+        peers = new Peer[config.servers.size() + (config.listen != null ? 1 : 0)];
+        for (int i = 0; i < config.servers.size(); i++) {
+            try {
+                InetSocketAddress server = resolve(config.servers.get(i));
+                peers[i] = new Peer(i, server.getAddress(), server.getPort(),
+                        new InFlightTable(config.maxInFlight, expired),
+                        new ClockFilter(config.filterSize, config.filterAgeMs * 1_000_000L),
+                        EWMA_WEIGHT);
+            }
+            catch (UnknownHostException e) {
+                System.out.println("ERROR: Unknown host. " + e.getMessage());
+                System.out.println(Config.USAGE);
+                System.exit(1);
+            }
+            catch (IllegalArgumentException e) {
+                System.out.println("ERROR: Bad server port in " + config.servers.get(i) + ". " + e.getMessage());
+                System.out.println(Config.USAGE);
+                System.exit(1);
+            }
         }
-        catch (UnknownHostException e) {
-            System.out.println("ERROR: Unknown host. " + e.getMessage());
-            System.out.println("Usage: ./client <server-address> [mins]");
-            System.exit(1);
+
+        List<String> labels = new ArrayList<>(config.servers);
+        if (config.listen != null) {
+            try {
+                InetSocketAddress group = resolve(config.listen);
+                multicast = new Peer(peers.length - 1, group.getAddress(), group.getPort(),
+                        new InFlightTable(1, expired),
+                        new ClockFilter(config.filterSize, config.filterAgeMs * 1_000_000L),
+                        EWMA_WEIGHT);
+                peers[multicast.id] = multicast;
+                labels.add(config.listen);
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: Unknown multicast group. " + e.getMessage());
+                System.exit(1);
+            }
         }
 
-        this.seq = new AtomicInteger();
-        seqSent = Collections.synchronizedList(new ArrayList<>());
-        seqSentTime = Collections.synchronizedList(new ArrayList<>());
-        seqRecv = Collections.synchronizedList(new ArrayList<>());
-        seqDropped = Collections.synchronizedList(new ArrayList<>());
-        seqRTT = Collections.synchronizedList(new ArrayList<>());
-        seqTheta = Collections.synchronizedList(new ArrayList<>());
-        smoothedTheta = Collections.synchronizedList(new ArrayList<>());
-        histoMap = Collections.synchronizedMap(new HashMap<Double, Integer>());
-        seqDroppedTime = Collections.synchronizedList(new ArrayList<>());
-        drift = Collections.synchronizedList(new ArrayList<>());
+        if (config.key > 0) {
+            try {
+                key = Keys.load(Paths.get(config.keys), config.key);
+            }
+            catch (IOException | IllegalArgumentException e) {
+                System.out.println("ERROR: Cannot load key " + config.key + ". " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        clock = new SyncClock();
+        discipline = new ClockDiscipline(clock, config.timeConstant);
 
-        exitFlag = false;
-        l = new ReentrantLock();
-        print = l.newCondition();
+        wheel = new TimingWheel(seq -> {
+            int id = Peer.peerId(seq);
+            if (id < peers.length) {
+                peers[id].inFlight.expire(seq);
+            }
+        }, WHEEL_TICK_NANOS, WHEEL_SIZE);
+        recvPackets = 0;
+        lateReplies = 0;
+        drops = new Drops(DROPS_KEPT);
+
+        if (config.journal != null) {
+            try {
+                journal = new Journal(Paths.get(config.journal), config.journalSegmentRecords, labels);
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: Cannot open journal " + config.journal + ". " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        rttStats = new RunningStats(EWMA_WEIGHT);
+        thetaStats = new RunningStats(EWMA_WEIGHT);
+        driftStats = new RunningStats(EWMA_WEIGHT);
+        rttHisto = new LogHistogram(HISTO_BITS, HISTO_HIGHEST);
+        thetaHisto = new SignedHistogram(HISTO_BITS, HISTO_HIGHEST);
+        driftHisto = new SignedHistogram(HISTO_BITS, HISTO_HIGHEST);
 
         sentPackets = 0;
 
         try {
-            clientSocket = new DatagramSocket(CLIENT_PORT);
+            if (multicast != null) {
+                // Bound to the group's port so unicast replies and the
+                // stream arrive on one socket and one receive thread. The
+                // port is not shared: with address reuse the kernel would
+                // hand each unicast reply to only one of the listeners.
+                NetworkInterface ni = multicastInterface(config.listenIf);
+                if (config.busyReceive) {
+                    channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                    channel.bind(new InetSocketAddress(multicast.port));
+                    channel.join(multicast.address, ni);
+                    channel.configureBlocking(false);
+                    clientSocket = channel.socket();
+                }
+                else {
+                    MulticastSocket socket = new MulticastSocket(null);
+                    socket.setReuseAddress(false);
+                    socket.bind(new InetSocketAddress(multicast.port));
+                    socket.joinGroup(multicast.socketAddress, ni);
+                    clientSocket = socket;
+                }
+            }
+            else if (config.busyReceive) {
+                channel = DatagramChannel.open();
+                channel.bind(new InetSocketAddress(config.port));
+                channel.configureBlocking(false);
+                clientSocket = channel.socket();
+            }
+            else {
+                clientSocket = new DatagramSocket(config.port);
+            }
         }
-        catch (SocketException e) {
+        catch (IOException e) {
             System.out.println("ERROR: Socket exception. " + e.getMessage());
             System.exit(1);
         }
     }
 
+    // The named interface, else the first one that is up and does multicast,
+    // preferring real interfaces over loopback
+    public static NetworkInterface multicastInterface(String name) throws SocketException {
+        if (name != null) {
+            NetworkInterface named = NetworkInterface.getByName(name);
+            if (named == null) {
+                throw new SocketException("No interface " + name);
+            }
+            return named;
+        }
+
+        NetworkInterface loopback = null;
+        for (Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces(); e.hasMoreElements();) {
+            NetworkInterface candidate = e.nextElement();
+            if (!candidate.isUp() || !candidate.supportsMulticast()) {
+                continue;
+            }
+            if (!candidate.isLoopback()) {
+                return candidate;
+            }
+            loopback = candidate;
+        }
+        if (loopback == null) {
+            throw new SocketException("No multicast capable interface");
+        }
+        return loopback;
+    }
+
+    // "host", "host:port" or "[v6-address]:port", the port defaults to 4011
+    public static InetSocketAddress resolve(String server) throws UnknownHostException {
+        String host = server;
+        int port = SERVER_PORT;
+        int colon = server.lastIndexOf(':');
+        if (server.startsWith("[") && server.contains("]")) {
+            host = server.substring(1, server.indexOf(']'));
+            if (colon > server.indexOf(']')) {
+                port = Integer.parseInt(server.substring(colon + 1));
+            }
+        }
+        else if (colon > 0 && server.indexOf(':') == colon) {
+            host = server.substring(0, colon);
+            port = Integer.parseInt(server.substring(colon + 1));
+        }
+        return new InetSocketAddress(InetAddress.getByName(host), port);
+    }
+
+    // Registers the JMX bean and, for a non-zero port, the HTTP endpoint
+    public void startMetrics(int port) {
+        metricsServer = new MetricsServer(metrics.registry);
+        metricsServer.registerMBean("client:type=Metrics,port=" + clientSocket.getLocalPort());
+        if (port > 0) {
+            try {
+                metricsServer.startHttp(port);
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: Cannot serve metrics on port " + port + ". " + e.getMessage());
+            }
+        }
+    }
+
     public DatagramSocket getSocket() {
         return this.clientSocket;
     }
 
+    public DatagramChannel getChannel() {
+        return this.channel;
+    }
+
+    // Sends one probe to every server
     public void send() {
+        for (Peer peer : peers) {
+            if (peer != multicast) {
+                send(peer);
+            }
+        }
+    }
+
+    public void send(Peer peer) {
+        // The server asked us to slow down
+        if (peer.isHeld(System.nanoTime())) {
+            peer.held++;
+            return;
+        }
+
         try {
-            // Create packet to send
-            int sequenceNo = this.seq.incrementAndGet();
-            double currSecondsSinceEpoch = Instant.now().toEpochMilli() / 1000d;
-            String synchMsg = sequenceNo + " " + String.format("%.6f", currSecondsSinceEpoch);
-            DatagramPacket p = new DatagramPacket(synchMsg.getBytes(),
-                    synchMsg.getBytes().length,
-                    serverAddress,
-                    SERVER_PORT);
-
-            // Add sequence to seqSent
-            seqSent.add(sequenceNo);
-            seqSentTime.add(currSecondsSinceEpoch);
-
-            // Send the packet
-            clientSocket.send(p);
+            // Create packet to send, the binary request is encoded in place
+            int sequenceNo = peer.nextSeq();
+            long sentNanos = Packet.nowNanos();
+            if (textFormat) {
+                String synchMsg = sequenceNo + " " + String.format("%.6f", sentNanos / 1e9);
+                byte[] msgBytes = synchMsg.getBytes();
+                sendPacket.setData(msgBytes, 0, msgBytes.length);
+            }
+            else {
+                Packet.encodeRequest(sendBuf, sequenceNo, sentNanos);
+                if (key != null) {
+                    Keys.sign(key, sendBuf);
+                }
+                sendPacket.setData(sendBytes, 0, key != null ? Keys.SIZE : Packet.SIZE);
+            }
+            sendPacket.setAddress(peer.address);
+            sendPacket.setPort(peer.port);
+
+            // Track the request until it is matched or expires
+            peer.inFlight.put(sequenceNo, sentNanos);
+            wheel.schedule(sequenceNo, System.nanoTime() + timeoutNanos);
+
+            // Send the packet, a non-blocking channel has to be written directly
+            if (channel != null) {
+                channel.send(ByteBuffer.wrap(sendPacket.getData(), 0, sendPacket.getLength()), peer.socketAddress);
+            }
+            else {
+                clientSocket.send(sendPacket);
+            }
 
             // Increment sent packet count
             sentPackets++;
+            peer.sent++;
+            metrics.sent.inc();
         }
         catch (IOException e) {
+            metrics.sendErrors.inc();
             System.out.println("ERROR: " + e.getMessage());
         }
     }
 
+    public int inFlightCount() {
+        int count = 0;
+        for (Peer peer : peers) {
+            count += peer.inFlight.size();
+        }
+        return count;
+    }
+
     public int getSentPackets() {
         return sentPackets;
     }
 
-    public double findAverage(List<Double> data) {
-        double sum = 0;
-        for (double val : data) {
-            sum += val;
+    // Everything in report.log. Built from the running statistics, the
+    // histograms and the bounded list of recent drops, so it costs the same
+    // after a day as after a minute. Snapshots call this from the timer
+    // thread while the receive thread keeps updating the statistics; the
+    // fields are read without locking, so a snapshot may be off by the
+    // sample being recorded at that moment.
+    public String buildReport(ClientReceiver receiver, int minutes) {
+        long dropped = drops.count();
+
+        String report = String.format("Clock synch runt time (m)   : %d\n", minutes) +
+                        String.format("Number of packets sent      : %d\n", getSentPackets()) +
+                        String.format("Number of packets received  : %d\n", recvPackets) +
+                        String.format("Number of packets dropped   : %d\n", dropped) +
+                        String.format("Number of late replies      : %d\n", lateReplies) +
+                        String.format("Percentage of packet drops  : %f\n", ((double)dropped)/getSentPackets()) +
+                        String.format("Average round trip time (s) : %.6f\n", rttStats.mean()) +
+                        String.format("Average theta (s)           : %.6f\n", thetaStats.mean()) +
+                        String.format("Average drift rate (s/s)    : %.9f\n", driftStats.mean()) +
+                        String.format("RTT min/max/stddev (s)      : %.6f / %.6f / %.6f\n",
+                                rttStats.min(), rttStats.max(), rttStats.stddev()) +
+                        String.format("Theta min/max/stddev (s)    : %.6f / %.6f / %.6f\n",
+                                thetaStats.min(), thetaStats.max(), thetaStats.stddev()) +
+                        String.format("Drift min/max/stddev (s/s)  : %.9f / %.9f / %.9f\n",
+                                driftStats.min(), driftStats.max(), driftStats.stddev()) +
+                        String.format("Recent RTT / theta / drift  : %.6f / %.6f / %.9f\n",
+                                rttStats.ewma(), thetaStats.ewma(), driftStats.ewma()) +
+                        String.format("RTT p50/p99/p99.9 (s)       : %.6f / %.6f / %.6f\n",
+                                rttHisto.valueAtPercentile(50) / 1e9, rttHisto.valueAtPercentile(99) / 1e9,
+                                rttHisto.valueAtPercentile(99.9) / 1e9) +
+                        String.format("Theta p50/p99/p99.9 (s)     : %.6f / %.6f / %.6f\n",
+                                thetaHisto.valueAtPercentile(50) / 1e9, thetaHisto.valueAtPercentile(99) / 1e9,
+                                thetaHisto.valueAtPercentile(99.9) / 1e9) +
+                        String.format("Drift p50/p99/p99.9 (s/s)   : %.9f / %.9f / %.9f\n",
+                                driftHisto.valueAtPercentile(50) / 1e9, driftHisto.valueAtPercentile(99) / 1e9,
+                                driftHisto.valueAtPercentile(99.9) / 1e9) +
+                        String.format("Selections without majority: %d\n", receiver.getNoMajority()) +
+                        String.format("Frequency correction (ppm)  : %.3f\n", discipline.frequencyPpm()) +
+                        String.format("Clock steps                 : %d\n", discipline.getSteps()) +
+                        String.format("Log records dropped         : %d\n", receiver.getLog().getDropped()) +
+                        (key == null ? "" : String.format("Unauthenticated replies     : %d\n", unauthenticated)) +
+                        String.format("Stamps user/busy/kernel     : %d / %d / %d\n", receiver.getStamps()[Sample.STAMP_USER],
+                                receiver.getStamps()[Sample.STAMP_BUSY], receiver.getStamps()[Sample.STAMP_KERNEL]) +
+                        (stateFile == null ? "" : String.format("Restored samples / startup  : %d / %d polls\n",
+                                restoredSamples, scheduler.getStartupPolls()));
+
+        StringBuilder serverReport = new StringBuilder();
+        serverReport.append("Servers: \n");
+        long now = Packet.nowNanos();
+        for (Peer peer : peers) {
+            ClockFilter filter = peer.filter;
+            serverReport.append(String.format("[%d] %s sent %d received %d selected %d falseticker %d\n",
+                    peer.id, peer, peer.sent, peer.received, peer.selected, peer.falseticker));
+            if (peer == multicast) {
+                serverReport.append(String.format("    multicast, uncalibrated %d one-way delay %.6f\n",
+                        peer.uncalibrated, peers[0].filter.isEmpty() ? Double.NaN : peers[0].filter.delay() / 2));
+            }
+            if (peer.stratum > 1 || peer.unsynchronized > 0) {
+                serverReport.append(String.format("    stratum %d root delay %.6f root dispersion %.6f unsynchronized %d\n",
+                        peer.stratum, peer.rootDelay, peer.rootDispersion, peer.unsynchronized));
+            }
+            if (peer.kisses > 0) {
+                serverReport.append(String.format("    rate kisses %d polls held %d\n", peer.kisses, peer.held));
+            }
+            serverReport.append(String.format("    avg RTT %.6f offset %.6f jitter %.6f dispersion %.6f\n",
+                    peer.rttStats.mean(),
+                    filter.isEmpty() ? Double.NaN : filter.offset(),
+                    filter.jitter(),
+                    filter.isEmpty() ? Double.NaN : filter.dispersion(now)));
         }
 
-        return sum / data.size();
+        StringBuilder droppedReport = new StringBuilder();
+        droppedReport.append("Dropped Packets: \n");
+        drops.appendTo(droppedReport);
+
+        StringBuilder histoReport = new StringBuilder();
+        histoReport.append("Histogram Report: \n");
+        driftHisto.appendBuckets(histoReport, 1e9, "%12.9f : ", 0);
+
+        return report + serverReport + droppedReport + histoReport;
     }
 
-    public void printReport() {
-        FileWriter fw = null;
+    public void printReport(ClientReceiver receiver) {
+        String report = buildReport(receiver, minutesRun());
+        System.out.println(report);
         try {
-            fw = new FileWriter(REPORT);
+            writeAtomically(REPORT, report);
         }
         catch (IOException e) {
             System.out.println("ERROR: " + e.getMessage());
-            return;
         }
+    }
 
-        double avgRTT = findAverage(seqRTT);
-        double avgTheta = findAverage(seqTheta);
-        double avgDrift = findAverage(drift);
-
-        String report = String.format("Clock synch runt time (m)   : %d\n", Client.expTime) +
-                        String.format("Number of packets sent      : %d\n", getSentPackets()) +
-                        String.format("Number of packets received  : %d\n", seqRecv.size()) +
-                        String.format("Number of packets dropped   : %d\n", seqDropped.size()) +
-                        String.format("Percentage of packet drops  : %f\n", ((double)seqDropped.size())/getSentPackets()) +
-                        String.format("Average round trip time (s) : %.6f\n", avgRTT) +
-                        String.format("Average theta (s)           : %.6f\n", avgTheta) +
-                        String.format("Average drift rate (s/s)    : %.9f\n", avgDrift);
+    private int minutesRun() {
+        return (int) Math.round((System.nanoTime() - startNanos) / 60e9);
+    }
 
-        StringBuilder droppedReport = new StringBuilder();
-        droppedReport.append("Dropped Packets: \n");
-        for (int i = 0; i < seqDropped.size(); i++) {
-            droppedReport.append(String.format("[%04d, %-8.6f]\n", seqDropped.get(i), seqDroppedTime.get(i)));
+    // Intermediate report.log and histograms of a long run, written so that
+    // readers always see either the previous or the new snapshot in full
+    public void writeSnapshot(ClientReceiver receiver) {
+        String report = String.format("Snapshot at %s\n", new Date()) + buildReport(receiver, minutesRun());
+        try {
+            writeAtomically(REPORT, report);
         }
-
-        StringBuilder histoReport = new StringBuilder();
-        histoReport.append("Histogram Report: \n");
-        List<Double> sortedKeys = new ArrayList<>(histoMap.keySet());
-        Collections.sort(sortedKeys);
-        for (double key : sortedKeys) {
-            int freq = Client.histoMap.get(key);
-            histoReport.append(String.format("%9.6f : %s\n", key, freq));
+        catch (IOException e) {
+            System.out.println("ERROR: Cannot write snapshot. " + e.getMessage());
+            return;
         }
+        createHisto();
+    }
 
+    // Writes a temporary file next to file and renames it over file
+    static void writeAtomically(String file, String text) throws IOException {
+        Path target = Paths.get(file).toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(tmp, text.getBytes(StandardCharsets.UTF_8));
         try {
-            System.out.println(report);
-            System.out.println(droppedReport.toString());
-            System.out.println(histoReport.toString());
-            fw.write(report);
-            fw.write(droppedReport.toString());
-            fw.write(histoReport.toString());
-            fw.flush();
-            fw.close();
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
         }
-        catch (IOException e) {
-            System.out.println("ERROR: " + e.getMessage());
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
     public void createHisto() {
-        FileWriter fw = null;
+        StringBuilder histo = new StringBuilder();
+        driftHisto.appendBuckets(histo, 1e9, "%12.9f:", HISTO_STARS);
+
         try {
-            fw = new FileWriter(HISTO);
+            writeAtomically(HISTO, histo.toString());
+
+            // Compact form of all histograms, can be merged into a later run
+            writeAtomically(HISTO_DATA, rttHisto.export() + "\n" + thetaHisto.export() + "\n"
+                    + driftHisto.export() + "\n");
         }
         catch (IOException e) {
             System.out.println("ERROR: " + e.getMessage());
-            return;
         }
+    }
+
+    // Starts receiving and polling, the session then runs until stop().
+    // Also used by the server's relay mode to follow its upstream servers.
+    public ClientReceiver start(Config config) {
+        // Learned state goes in before the first reply can arrive
+        ClockState state = stateFile != null ? loadState() : null;
+
+        // Start receiver thread
+        ClientReceiver receiver = new ClientReceiver(this, config);
+        receiver.start();
+
+        // Send probes from the dedicated scheduler thread, polling fast at
+        // first when the state is kept across runs
+        scheduler = new PollScheduler(this, config.intervalMs, config.burst, config.spin,
+                config.adaptive, config.minPoll, config.maxPoll, stateFile != null);
+        if (state != null) {
+            scheduler.restorePoll(state.poll);
+        }
+        scheduler.start();
+
+        // Drop packets that have not returned within timeout
+        wheel.start();
+
+        if (config.reportEveryMin > 0) {
+            startSnapshots(receiver, config.reportEveryMin);
+        }
+        if (stateFile != null) {
+            startStateSaves();
+        }
+        return receiver;
+    }
+
+    private Timer timer() {
+        if (timer == null) {
+            timer = new Timer("client-timer", true);
+        }
+        return timer;
+    }
+
+    // A missing file is a first run, a bad one is reported and ignored
+    private ClockState loadState() {
+        if (!Files.exists(stateFile)) {
+            System.out.println("No clock state in " + stateFile + " yet, starting fresh");
+            return null;
+        }
+        try {
+            ClockState state = ClockState.load(stateFile);
+            long now = Packet.nowNanos();
+            restoredSamples = state.apply(this, now);
+            lastStateSaved = state.savedNanos;
+            System.out.format("Restored clock state from %s, saved %.0f s ago, frequency %.3f ppm, %d samples\n",
+                    stateFile, (now - state.savedNanos) / 1e9, state.frequency * 1e6, restoredSamples);
+            return state;
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.out.println("ERROR: Cannot load clock state " + stateFile + ". " + e.getMessage());
+            return null;
+        }
+    }
 
-        List<Double> sortedKeys = new ArrayList<>(histoMap.keySet());
+    // Receive thread, after every sample. Copying the state is cheap, the
+    // file is written by the timer thread so the receive loop never waits
+    // on the disk.
+    public void captureState() {
+        if (stateFile == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - nextStateNanos < 0) {
+            return;
+        }
+        nextStateNanos = now + STATE_SAVE_NANOS;
+        pendingState.set(ClockState.capture(this));
+    }
 
-        Collections.sort(sortedKeys);
+    private void startStateSaves() {
+        long period = STATE_SAVE_NANOS / 1_000_000L;
+        timer().scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                saveState(pendingState.getAndSet(null));
+            }
+        }, period, period);
+    }
 
-        for (Double key : sortedKeys) {
-            int freq = Client.histoMap.get(key);
-            String stars = getStars(freq);
-            String histoLine = String.format("%9.6f:%s\n", key, stars);
+    // Never replaces the file with an older copy, the final save in stop()
+    // may overtake a copy the timer thread is about to write
+    private void saveState(ClockState state) {
+        if (state == null) {
+            return;
+        }
+        synchronized (stateLock) {
+            if (state.savedNanos <= lastStateSaved) {
+                return;
+            }
             try {
-                fw.write(histoLine);
-                fw.flush();
+                state.save(stateFile);
+                lastStateSaved = state.savedNanos;
             }
             catch (IOException e) {
-                System.out.println("ERROR: " + e.getMessage());
+                System.out.println("ERROR: Cannot save clock state " + stateFile + ". " + e.getMessage());
             }
+        }
+    }
 
+    // Every polled server has answered STARTUP_SAMPLES times in this run or
+    // is held off by a rate kiss, read by the scheduler during startup
+    public boolean converged() {
+        long now = System.nanoTime();
+        for (Peer peer : peers) {
+            if (peer != multicast && peer.received < STARTUP_SAMPLES && !peer.isHeld(now)) {
+                return false;
+            }
         }
+        return true;
+    }
+
+    public void startSnapshots(ClientReceiver receiver, int everyMinutes) {
+        long period = everyMinutes * 60 * 1000L;
+        timer().scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                writeSnapshot(receiver);
+            }
+        }, period, period);
+    }
 
+    // Waits for the end of a timed run, or until stop() from the shutdown
+    // hook when mins is 0
+    public void awaitEnd(int mins) {
         try {
-            fw.close();
+            if (mins > 0) {
+                stopped.await(mins, TimeUnit.MINUTES);
+            }
+            else {
+                stopped.await();
+            }
         }
-        catch (IOException e) {
-            System.out.println("ERROR: " + e.getMessage());
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Orderly end of the session, from the main thread after a timed run or
+    // from the shutdown hook on SIGTERM/SIGINT, whichever comes first. Stops
+    // sending, waits up to the drain deadline for outstanding replies, stops
+    // the receiver and then flushes the log, journal and reports. Later
+    // calls wait for the first one to finish and return.
+    public synchronized void stop(ClientReceiver receiver) {
+        if (stopped.getCount() == 0) {
+            return;
         }
 
+        if (scheduler != null) {
+            scheduler.shutdown();
+            join(scheduler);
+        }
+
+        long deadline = System.nanoTime() + drainNanos;
+        while (inFlightCount() > 0 && deadline - System.nanoTime() > 0) {
+            LockSupport.parkNanos(DRAIN_POLL_NANOS);
+        }
+
+        receiver.shutdown();
+        join(receiver);
+        wheel.shutdown();
+        if (timer != null) {
+            timer.cancel();
+        }
+        // Nothing learned without a sample, the saved state stays as it was
+        if (stateFile != null && clock.isSynced()) {
+            saveState(ClockState.capture(this));
+        }
+
+        receiver.getLog().close();
+        if (journal != null) {
+            journal.close();
+        }
+        printReport(receiver);
+        createHisto();
+
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        clientSocket.close();
+        stopped.countDown();
     }
 
-    public String getStars(int num) {
-        StringBuilder stars = new StringBuilder();
-        for (int i = 0; i < num; i++) {
-            stars.append('*');
+    private static void join(Thread thread) {
+        try {
+            thread.join(JOIN_MILLIS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            System.out.println("ERROR: " + thread.getName() + " did not stop");
         }
-        return stars.toString();
     }
 
-    public static void main(String[] args) {
-        int mins = -1;
-        if (args.length == 2) {
-            try {
-                mins = Integer.parseInt(args[1]);
-                Client.expTime = mins;
+    public void mergeHisto(String file) {
+        try {
+            List<String> lines = Files.readAllLines(Paths.get(file));
+            rttHisto.merge(LogHistogram.parse(lines.get(0)));
+            thetaHisto.merge(SignedHistogram.parse(lines.get(1), lines.get(2)));
+            driftHisto.merge(SignedHistogram.parse(lines.get(3), lines.get(4)));
+        }
+        catch (IOException | RuntimeException e) {
+            System.out.println("ERROR: Cannot merge histograms from " + file + ". " + e.getMessage());
+        }
+    }
+
+    // Load generator mode, simulated clients instead of a session
+    private static void runLoad(Config config, int mins) {
+        LoadGenerator generator = null;
+        try {
+            InetSocketAddress server = resolve(config.servers.get(0));
+            generator = new LoadGenerator(server.getAddress(), server.getPort(), config);
+            generator.start();
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.out.println("ERROR: Cannot start load generator. " + e.getMessage());
+            System.exit(1);
+        }
+
+        System.out.println("Load generator started with " + config.load + " clients...");
+        final LoadGenerator running = generator;
+        final long start = System.nanoTime();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> running.finish(System.nanoTime() - start),
+                "load-shutdown"));
+        try {
+            if (mins > 0) {
+                Thread.sleep(mins * 60 * 1000L);
             }
-            catch (NumberFormatException e) {
-                System.out.println("ERROR: " + e.getMessage());
-                System.exit(1);
+            else {
+                Thread.currentThread().join();
             }
         }
-        else if (args.length != 1) {
-            System.out.println("Usage: ./client <server-address> [mins]");
+        catch (InterruptedException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+        generator.finish(System.nanoTime() - start);
+    }
+
+    public static void main(String[] args) {
+        Config config = null;
+        try {
+            config = Config.parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            System.out.println(Config.USAGE);
             System.exit(1);
         }
-        final Client client = new Client(args[0]);
 
+        int mins = config.mins;
         if (mins == -1) {
             InputStreamReader isr = new InputStreamReader(System.in);
             BufferedReader br = new BufferedReader(isr);
-            System.out.println("Enter number of mins to run");
+            System.out.println("Enter number of mins to run, 0 runs until stopped");
             try {
                 mins = Integer.parseInt(br.readLine());
             } catch (Exception e) {
@@ -267,70 +817,25 @@ public class Client {
             }
         }
 
-        System.out.println("UDP Client Started...");
-
-        // Start receiver thread
-        ClientReceiver clientReceiver = new ClientReceiver(client.getSocket());
-        clientReceiver.start();
-
-        // Send packet every 10 seconds
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                if (!exitFlag) {
-                    client.send();
-                }
-            }
-        }, 0, 10*1000);
-
-        // Remove packets that have not returned within timeout
-        Timer dropTimer = new Timer();
-        dropTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                List<Integer> idxToRemove = new ArrayList<>();
-                for(int i = 0; i < Client.seqSentTime.size(); i++) {
-                    if (((Instant.now().toEpochMilli() / 1000d) - Client.seqSentTime.get(i)) >= PACKET_TIMEOUT) {
-                        idxToRemove.add(i);
-                    }
-                }
-
-                for (int i : idxToRemove) {
-                    if (Client.seqSent.size() > 0) {
-                        Client.seqDropped.add(Client.seqSent.get(i));
-                        Client.seqDroppedTime.add(Client.seqSentTime.get(i));
-                        Client.seqSentTime.remove(i);
-                        Client.seqSent.remove(i);
-                    }
-                }
-            }
-        }, 1*1000, PACKET_TIMEOUT*1000);
-
-        // End the program after 1 minute
-        Timer exitTimer = new Timer();
-        exitTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                exitFlag = true;
-
-                Client.l.lock();
+        if (config.load > 0) {
+            runLoad(config, mins);
+            return;
+        }
 
-                try {
-                    print.await();
-                }
-                catch (InterruptedException e) {
-                    System.out.println("ERROR: " + e.getMessage());
-                }
+        final Client client = new Client(config);
+        client.startMetrics(config.metricsPort);
 
-                client.printReport();
-                client.createHisto();
+        if (config.mergeHisto != null) {
+            client.mergeHisto(config.mergeHisto);
+        }
 
-                Client.l.unlock();
+        System.out.println("UDP Client Started...");
+        ClientReceiver clientReceiver = client.start(config);
 
-                System.exit(0);
-            }
-        }, mins*60*1000);
+        // SIGTERM and SIGINT end the run the same way as the end of mins
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> client.stop(clientReceiver), "client-shutdown"));
 
+        client.awaitEnd(mins);
+        client.stop(clientReceiver);
     }
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+package client;
+
+import java.util.function.DoubleToLongFunction;
+import java.util.function.Supplier;
+
+// The live metrics of one client session
+public class ClientMetrics {
+    public final Metrics registry = new Metrics("clock_client_");
+
+    public final Metrics.Counter sent = registry.counter("requests_sent_total", "Requests sent to all servers");
+
+    public final Metrics.Counter received = registry.counter("replies_received_total", "Replies matched to a request");
+
+    public final Metrics.Counter late = registry.counter("late_replies_total", "Replies after their request expired");
+
+    public final Metrics.Counter dropped = registry.counter("requests_dropped_total", "Requests that timed out");
+
+    public final Metrics.Counter kisses = registry.counter("rate_kisses_total", "Rate kisses from servers");
+
+    public final Metrics.Counter unauthenticated = registry.counter("unauthenticated_total",
+            "Replies dropped for a missing or bad MAC");
+
+    public final Metrics.Counter sendErrors = registry.counter("send_errors_total", "Requests that failed to send");
+
+    public ClientMetrics(Client client) {
+        registry.summary("rtt_seconds", "Round trip time",
+                summary(() -> client.rttStats, p -> client.rttHisto.valueAtPercentile(p), 1e-9));
+        registry.summary("offset_seconds", "Offset of each sample",
+                summary(() -> client.thetaStats, p -> client.thetaHisto.valueAtPercentile(p), 1e-9));
+        registry.summary("drift_ratio", "Disciplined frequency correction",
+                summary(() -> client.driftStats, p -> client.driftHisto.valueAtPercentile(p), 1e-9));
+        registry.gauge("in_flight", "Requests awaiting a reply", client::inFlightCount);
+        registry.gauge("frequency_ppm", "Current frequency correction", () -> client.discipline.frequencyPpm());
+        registry.gauge("poll_interval_seconds", "Current poll interval",
+                () -> client.scheduler == null ? 0 : client.scheduler.intervalNanos() / 1e9);
+    }
+
+    // Quantiles from the report histogram, count and sum from the running
+    // stats fed by the same samples. The receive thread writes both, they
+    // are only read here for display.
+    private static Metrics.Summary summary(Supplier<RunningStats> stats, DoubleToLongFunction valueAtPercentile,
+                                           double scale) {
+        return new Metrics.Summary() {
+            @Override
+            public long count() {
+                return stats.get().count();
+            }
+
+            @Override
+            public double sum() {
+                RunningStats s = stats.get();
+                return s.count() == 0 ? 0 : s.count() * s.mean();
+            }
+
+            @Override
+            public double quantile(double q) {
+                return valueAtPercentile.applyAsLong(q * 100) * scale;
+            }
+        };
+    }
+}
@@ -1,175 +1,431 @@
 package client;
 
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
-import java.time.Instant;
 import java.util.Date;
-import java.util.List;
 
 public class ClientReceiver extends Thread {
-    private DatagramSocket clientSocket;
+    private final Client client;
+
+    private final DatagramSocket clientSocket;
+
+    // Set with --receive=busy, the receive loop then polls it without blocking
+    private final DatagramChannel channel;
 
     private final static String LOG_FILE = "log.txt";
 
+    private final static int LOG_CAPACITY = 8192;
+
     private final SimpleDateFormat sdf = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss.S");
 
-    double[] lastTime;
+    private final boolean textFormat;
+
+    private final byte[] buf = new byte[1024];
+
+    private final ByteBuffer recvBuf = ByteBuffer.wrap(buf);
+
+    private final DatagramPacket p = new DatagramPacket(buf, buf.length);
+
+    private final AsyncLog<Sample> log;
+
+    private final Selector selector = new Selector(Peer.MAX_PEERS);
+
+    private long noMajority = 0;
+
+    private final int cpu;
 
-    public ClientReceiver(DatagramSocket clientSocket) {
-        this.clientSocket = clientSocket;
-        lastTime = new double[2];
+    private final boolean kernelTimestamps;
+
+    // Replies stamped per source, indexed by Sample.STAMP_*
+    private final long[] stamps = new long[Sample.STAMP_NAMES.length];
+
+    private long lastSourceBits = -1;
+
+    private InetAddress lastSource;
+
+    private volatile boolean running = true;
+
+    public ClientReceiver(Client client, Config config) {
+        super("client-receiver");
+        this.client = client;
+        this.clientSocket = client.getSocket();
+        this.channel = client.getChannel();
+        this.textFormat = config.textFormat;
+        this.cpu = config.cpu;
+        this.kernelTimestamps = config.kernelTimestamps;
+        log = new AsyncLog<>("client-log", LOG_FILE, !config.quiet, LOG_CAPACITY, this::format);
     }
 
-    public void run() {
-        String msg;
+    public AsyncLog<Sample> getLog() {
+        return log;
+    }
 
-        // Print headers for report
-        try {
-            FileWriter fw = new FileWriter(LOG_FILE);
-            String header = String.format("%-10s %-10s %-10s %-10s %-10s %-24s %-24s\n",
-                    "Packet", "RTT", "θ", "Smoothed θ", "Ins. Drift", "Current", "Corrected");
+    public long getNoMajority() {
+        return noMajority;
+    }
 
-            // Print to console
-            System.out.println(header);
-            System.out.println("---------------------------------------------------------------------------------------------------------");
+    public long[] getStamps() {
+        return stamps;
+    }
 
-            // Print to file
-            fw.write(header);
-            fw.write("---------------------------------------------------------------------------------------------------------------\n");
-            fw.flush();
-            fw.close();
+    // Ends the receive loop, the caller joins the thread before reading its state
+    public void shutdown() {
+        running = false;
+        if (channel == null) {
+            // A blocking receive only returns for a datagram or a closed socket
+            clientSocket.close();
         }
-        catch (IOException e) {
-            System.out.println("ERROR: " + e.getMessage());
+    }
+
+    public void run() {
+        // Print headers for report
+        String header = String.format("%-10s %-10s %-10s %-10s %-10s %-24s %-24s %-6s\n",
+                "Packet", "RTT", "θ", "Smoothed θ", "Drift", "Current", "Corrected", "Stamp");
+        log.writeNow(header +
+                "----------------------------------------------------------------------------------------------------------------------\n");
+        log.start();
+
+        if (cpu >= 0) {
+            pin(cpu);
         }
 
-        try {
-            clientSocket.setSoTimeout(3 * 1000);
+        if (channel != null) {
+            runBusy();
         }
-        catch (SocketException e) {
-            System.out.println("ERROR: " + e.getMessage());
+        else {
+            runBlocking();
         }
+    }
 
-        while (true) {
-            byte[] buf = new byte[1024];
-            DatagramPacket p = new DatagramPacket(buf, buf.length);
-            double t0 = 0d;
+    private void runBlocking() {
+        while (running) {
+            long t0 = 0L;
 
             try {
+                p.setLength(buf.length);
                 clientSocket.receive(p);
-                t0 = Instant.now().toEpochMilli() / 1000d;
+                t0 = Packet.nowNanos();
             }
             catch(IOException e) {
-                signalEnd();
+                // shutdown() closes the socket to end a blocked receive
+                if (running) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
                 continue;
             }
 
-            msg = new String(p.getData()).trim();
-            String[] msgParts = msg.split(" ");
-
-            int seq = Integer.parseInt(msgParts[0]);
-            if (Client.seqSent.contains(seq)) {
-                // Remove from seqSent and its corresponding time
-                int idx = Client.seqSent.indexOf(seq);
+            handle(p.getLength(), p.getAddress(), t0, Sample.STAMP_USER);
+        }
+    }
 
-                // Track last received sent time
-                lastTime[1] = lastTime[0];
-                lastTime[0] = Client.seqSentTime.get(idx);
+    // Spins on the non-blocking channel so a reply is stamped as soon as it
+    // is queued instead of after a thread wakeup. With kernel timestamps the
+    // stamp comes from the socket layer and the spin only bounds how long
+    // the reply waits to be processed.
+    private void runBusy() {
+        KernelTimestamps kernel = null;
+        if (kernelTimestamps) {
+            StringBuilder reason = new StringBuilder();
+            // The shim reports IPv4 sources only, an IPv6 server's replies
+            // would never match their requests
+            for (Peer peer : client.peers) {
+                if (peer.address instanceof Inet6Address) {
+                    reason.append("Server " + peer.address.getHostAddress() + " is IPv6, only IPv4 is supported");
+                    break;
+                }
+            }
+            kernel = reason.length() == 0 ? KernelTimestamps.open(channel, reason) : null;
+            if (kernel == null) {
+                System.out.println("ERROR: Kernel timestamps unavailable, using userspace stamps. " + reason);
+            }
+        }
+        ByteBuffer direct = kernel != null ? ByteBuffer.allocateDirect(buf.length) : null;
 
-                Client.seqSentTime.remove(idx);
-                Client.seqSent.remove(new Integer(seq));
+        while (running) {
+            int length = 0;
+            InetAddress from = null;
+            long t0 = 0L;
+            int stamp = Sample.STAMP_BUSY;
 
-                double t3 = Double.parseDouble(msgParts[1]);
-                double t2 = Double.parseDouble(msgParts[2]);
-                double t1 = Double.parseDouble(msgParts[3]);
-                processTime(seq, t3, t2, t1, t0);
+            try {
+                if (kernel != null) {
+                    length = kernel.receive(direct);
+                    if (length > 0) {
+                        t0 = kernel.timestamp();
+                        if (t0 != 0) {
+                            stamp = Sample.STAMP_KERNEL;
+                        }
+                        else {
+                            t0 = Packet.nowNanos();
+                        }
+                        direct.duplicate().position(0).limit(length).get(buf, 0, length);
+                        from = source(kernel.sourceAddress());
+                    }
+                    else if (length < 0) {
+                        throw new IOException("recvmsg failed with errno " + -length);
+                    }
+                }
+                else {
+                    recvBuf.clear();
+                    SocketAddress sender = channel.receive(recvBuf);
+                    if (sender != null) {
+                        t0 = Packet.nowNanos();
+                        length = recvBuf.position();
+                        from = ((InetSocketAddress) sender).getAddress();
+                    }
+                }
             }
-            else {
-                Client.seqDropped.add(seq);
-                System.out.format("%-10d %-10s %-10s %-10s %-10s %-24s %-24s\n", seq, "-", "-", "-", "-", "-", "-");
+            catch (IOException e) {
+                if (running) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
+                length = 0;
             }
 
-            signalEnd();
+            if (length > 0) {
+                handle(length, from, t0, stamp);
+                continue;
+            }
+            Thread.onSpinWait();
         }
     }
 
-    public void processTime(int seq, double t3, double t2, double t1, double t0) {
-        double rtt = (t2 - t3) + (t0 - t1);
-        double theta = ((t2 - t3) - (t0 - t1)) / 2;
-        Client.seqRecv.add(seq);
-        Client.seqRTT.add(rtt);
-        Client.seqTheta.add(theta);
-
-        List<Double> tmpRTT = Client.seqRTT.subList(Math.max(Client.seqRTT.size() - 8, 0), Client.seqRTT.size());
-        List<Double> tmpTheta = Client.seqTheta.subList(Math.max(Client.seqTheta.size() - 8, 0), Client.seqTheta.size());
-        int idx = findMinIDX(tmpRTT);
-        double smoothedTheta = tmpTheta.get(idx);
-        Client.smoothedTheta.add(smoothedTheta);
-
-        double currTime = Instant.now().toEpochMilli() / 1000d;
-
-        double timeElapsed =  currTime - lastTime[1];
-        double instDrift = (smoothedTheta - Client.smoothedTheta.get(Math.max(Client.smoothedTheta.size() - 2, 0))) / timeElapsed ;
-        Client.drift.add(instDrift);
-
-        double correctedTime = currTime + smoothedTheta;
+    // The kernel path hands back IPv4 sources as ints, servers rarely change
+    private InetAddress source(long address) {
+        if (address < 0) {
+            return null;
+        }
+        if (address != lastSourceBits || lastSource == null) {
+            byte[] bytes = {(byte) (address >> 24), (byte) (address >> 16), (byte) (address >> 8), (byte) address};
+            try {
+                lastSource = InetAddress.getByAddress(bytes);
+                lastSourceBits = address;
+            }
+            catch (UnknownHostException e) {
+                return null;
+            }
+        }
+        return lastSource;
+    }
 
-        // Count theta calculated for histogram
-        int val = Client.histoMap.getOrDefault(instDrift, 0) + 1;
-        Client.histoMap.put(instDrift, val);
+    // Best effort, taskset moves only this thread, given its Linux thread id
+    private static void pin(int cpu) {
+        try {
+            String tid = Paths.get("/proc/thread-self").toRealPath().getFileName().toString();
+            Process taskset = new ProcessBuilder("taskset", "-pc", Integer.toString(cpu), tid)
+                    .redirectErrorStream(true).start();
+            String output = new String(taskset.getInputStream().readAllBytes()).trim();
+            if (taskset.waitFor() != 0) {
+                System.out.println("ERROR: Cannot pin receive thread to CPU " + cpu + ". " + output);
+            }
+            else {
+                System.out.println("Receive thread pinned to CPU " + cpu);
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            System.out.println("ERROR: Cannot pin receive thread to CPU " + cpu + ". " + e.getMessage());
+        }
+    }
 
-        String currTimeStr = sdf.format(new Date((long)(currTime * 1000d)));
-        String correctTimeStr = sdf.format(new Date((long)(correctedTime * 1000d)));
+    // One reply of length bytes in buf, received from 'from' at t0
+    private void handle(int length, InetAddress from, long t0, int stamp) {
+        // With a key anything not signed with it is dropped before it is
+        // parsed, kisses and multicast packets included
+        if (client.key != null && !Keys.verify(client.key, recvBuf, length)) {
+            client.unauthenticated++;
+            client.metrics.unauthenticated.inc();
+            return;
+        }
 
-        String record = String.format("%-10d %10.6f %10.6f %10.6f %10.6f %-24s %-24s\n",
-                seq,
-                rtt,
-                theta,
-                smoothedTheta,
-                instDrift,
-                currTimeStr,
-                correctTimeStr);
+        if (client.multicast != null && Packet.isBroadcast(recvBuf, length)) {
+            handleBroadcast(t0, stamp);
+            return;
+        }
 
+        int seq;
+        long t3, t2, t1;
+        boolean kiss = false;
+        // Text replies only come from the original primary servers
+        int stratum = 1;
+        double rootDelay = 0;
+        double rootDispersion = 0;
         try {
-            FileWriter fw = new FileWriter(LOG_FILE, true);
+            if (textFormat) {
+                String msg = new String(buf, 0, length).trim();
+                String[] msgParts = msg.split(" ");
+                seq = Integer.parseInt(msgParts[0]);
+                t3 = Math.round(Double.parseDouble(msgParts[1]) * 1e9);
+                t2 = Math.round(Double.parseDouble(msgParts[2]) * 1e9);
+                t1 = Math.round(Double.parseDouble(msgParts[3]) * 1e9);
+            }
+            else {
+                if (!Packet.isResponse(recvBuf, length)) {
+                    return;
+                }
+                seq = Packet.seq(recvBuf);
+                kiss = Packet.isKiss(recvBuf);
+                stratum = Packet.stratum(recvBuf);
+                rootDelay = Packet.rootDelay(recvBuf);
+                rootDispersion = Packet.rootDispersion(recvBuf);
+                t3 = Packet.origin(recvBuf);
+                t2 = Packet.receive(recvBuf);
+                t1 = Packet.transmit(recvBuf);
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("ERROR: Malformed reply. " + e.getMessage());
+            return;
+        }
+        stamps[stamp]++;
+
+        // The seq names the server, which must also be the sender
+        int id = Peer.peerId(seq);
+        Peer peer = id < client.peers.length ? client.peers[id] : null;
+        long sentNanos = InFlightTable.NOT_FOUND;
+        if (peer != null && peer.address.equals(from)) {
+            sentNanos = peer.inFlight.match(seq);
+        }
+
+        // Raw timestamps in NTP order: client send, server receive,
+        // server transmit, client receive. Only replies from the server the
+        // seq names, a seq of 0 was never sent.
+        if (client.journal != null && peer != null && peer.address.equals(from) && seq != 0) {
+            int flags = (textFormat ? Journal.FLAG_TEXT : 0)
+                    | (kiss ? Journal.FLAG_KISS : 0)
+                    | (sentNanos == InFlightTable.NOT_FOUND ? Journal.FLAG_LATE : 0)
+                    | (stamp == Sample.STAMP_BUSY ? Journal.FLAG_BUSY_STAMP : 0)
+                    | (stamp == Sample.STAMP_KERNEL ? Journal.FLAG_KERNEL_STAMP : 0)
+                    | (stratum >= Packet.STRATUM_UNSYNCHRONIZED ? Journal.FLAG_UNSYNCHRONIZED : 0);
+            client.journal.append(seq, id, flags, t3, t2, t1, t0);
+        }
 
-            System.out.println(record);
+        if (sentNanos != InFlightTable.NOT_FOUND && kiss) {
+            // Carries no timestamps, only asks for a longer poll interval
+            peer.kiss(System.nanoTime(), client.scheduler.intervalNanos());
+            client.metrics.kisses.inc();
+        }
+        else if (sentNanos != InFlightTable.NOT_FOUND && stratum >= Packet.STRATUM_UNSYNCHRONIZED) {
+            // A relay that has not synchronized to its own servers yet
+            peer.answered();
+            peer.unsynchronized++;
+        }
+        else if (sentNanos != InFlightTable.NOT_FOUND) {
+            peer.answered();
+            peer.reference(stratum, rootDelay, rootDispersion);
+            processTime(peer, seq, t3, t2, t1, t0, stamp);
+        }
+        else {
+            client.lateReplies++;
+            client.metrics.late.inc();
+            log.log(Sample.late(seq, stamp));
+        }
+    }
 
-            fw.write(record);
-            fw.flush();
-            fw.close();
+    // A multicast packet carries only the server's transmit time. The
+    // one-way delay d comes from the unicast exchanges with the first
+    // server, half the delay of its best filter sample. The packet is then
+    // processed as the exchange it is equivalent to: sent at t0 - 2d,
+    // answered at the packet's transmit time, which gives an RTT of 2d and
+    // an offset of transmit + d - t0.
+    private void handleBroadcast(long t0, int stamp) {
+        Peer peer = client.multicast;
+        int seq = peer.seqOf(Packet.seq(recvBuf));
+        long t1 = Packet.transmit(recvBuf);
+        int stratum = Packet.stratum(recvBuf);
+        stamps[stamp]++;
+
+        Peer calibration = client.peers[0];
+        if (calibration.filter.isEmpty()) {
+            peer.uncalibrated++;
+            return;
         }
-        catch (IOException e) {
-            System.out.println("ERROR: " + e.getMessage());
+        long delayNanos = Math.round(calibration.filter.delay() / 2 * 1e9);
+        long t3 = t0 - 2 * delayNanos;
+
+        if (client.journal != null) {
+            int flags = Journal.FLAG_BROADCAST
+                    | (stamp == Sample.STAMP_BUSY ? Journal.FLAG_BUSY_STAMP : 0)
+                    | (stamp == Sample.STAMP_KERNEL ? Journal.FLAG_KERNEL_STAMP : 0)
+                    | (stratum >= Packet.STRATUM_UNSYNCHRONIZED ? Journal.FLAG_UNSYNCHRONIZED : 0);
+            client.journal.append(seq, peer.id, flags, t3, t1, t1, t0);
         }
 
+        if (stratum >= Packet.STRATUM_UNSYNCHRONIZED) {
+            peer.unsynchronized++;
+            return;
+        }
+        peer.reference(stratum, Packet.rootDelay(recvBuf), Packet.rootDispersion(recvBuf));
+        processTime(peer, seq, t3, t1, t1, t0, stamp);
     }
 
-    public int findMinIDX(List<Double> tmp) {
-        int i;
-        int idx = -1;
-        double min = 9999;
-        double val = 0;
-        for(i = 0; i < tmp.size(); i++) {
-            val = tmp.get(i);
-            if (val < min) {
-                min = val;
-                idx = i;
-            }
+    public void processTime(Peer peer, int seq, long t3, long t2, long t1, long t0, int stamp) {
+        // Differences are taken on the nanosecond values before converting to seconds
+        double rtt = ((t2 - t3) + (t0 - t1)) / 1e9;
+        double theta = ((t2 - t3) - (t0 - t1)) / 2e9;
+        client.recvPackets++;
+        client.rttStats.add(rtt);
+        client.thetaStats.add(theta);
+
+        peer.received++;
+        peer.rttStats.add(rtt);
+
+        // Filter per server, then select and combine across servers
+        peer.filter.add(rtt, theta, t0);
+        double smoothedTheta = selector.select(client.peers, t0);
+        if (!selector.hadMajority()) {
+            noMajority++;
         }
+        client.scheduler.onSample(smoothedTheta, peer.filter.jitter());
+
+        // Steer the synchronized clock, its frequency correction is the drift
+        client.discipline.update(smoothedTheta);
+        double drift = client.discipline.getClock().frequency();
+        client.driftStats.add(drift);
+
+        long currNanos = Packet.nowNanos();
+        long correctedNanos = client.discipline.getClock().nowNanos();
+
+        // Count samples for the histograms, the live metrics read them too
+        client.rttHisto.record(t2 - t3 + t0 - t1);
+        client.thetaHisto.record((t2 - t3 - t0 + t1) / 2);
+        client.driftHisto.record(Math.round(drift * 1e9));
 
-        return idx;
+        client.metrics.received.inc();
+
+        log.log(new Sample(seq, peer.id, rtt, theta, smoothedTheta, drift,
+                currNanos, correctedNanos, false, stamp));
+        client.captureState();
     }
 
-    public void signalEnd() {
-        Client.l.lock();
-        if (Client.exitFlag && Client.seqSent.size() == 0) {
-            Client.print.signal();
+    // Runs on the log writer thread
+    public void format(Sample s, StringBuilder out) {
+        if (s.late) {
+            out.append(String.format("%-10s %-10s %-10s %-10s %-10s %-24s %-24s %-6s\n", Peer.label(s.seq), "-", "-", "-", "-", "-", "-",
+                    Sample.STAMP_NAMES[s.stamp]));
+            return;
         }
-        Client.l.unlock();
+
+        String currTimeStr = sdf.format(new Date(s.currNanos / 1_000_000L));
+        String correctTimeStr = sdf.format(new Date(s.correctedNanos / 1_000_000L));
+
+        out.append(String.format("%-10s %10.6f %10.6f %10.6f %10.6f %-24s %-24s %-6s\n",
+                Peer.label(s.seq),
+                s.rtt,
+                s.theta,
+                s.smoothedTheta,
+                s.drift,
+                currTimeStr,
+                correctTimeStr,
+                Sample.STAMP_NAMES[s.stamp]));
     }
 }
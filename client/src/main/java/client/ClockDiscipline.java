@@ -0,0 +1,94 @@
+package client;
+
+// Hybrid phase/frequency locked loop steering a SyncClock from the combined
+// offsets. Each update measures the error of the virtual clock against the
+// best estimate of true time (local clock plus offset). The phase error is
+// slewed out over the time constant, the PLL integrates it into the
+// frequency, and for long update intervals the FLL adds the error rate.
+public class ClockDiscipline {
+    // Maximum frequency and slew correction, 500 ppm as in NTP
+    private final static double MAX_FREQ = 500e-6;
+
+    private final static double MAX_SLEW = 500e-6;
+
+    // Errors above this are stepped rather than slewed when moving forward
+    private final static long STEP_NANOS = 128_000_000L;
+
+    // Intervals from which the FLL contributes
+    private final static double FLL_MIN_INTERVAL = 256;
+
+    private final static double FLL_WEIGHT = 0.25;
+
+    private final SyncClock clock;
+
+    private final double timeConstant;
+
+    private long lastUpdateNano = 0;
+
+    private double lastError = 0;
+
+    private long updates = 0;
+
+    private long steps = 0;
+
+    // Frequency learned by an earlier run, used from the first update on
+    private double restoredFreq = 0;
+
+    public ClockDiscipline(SyncClock clock, double timeConstant) {
+        this.clock = clock;
+        this.timeConstant = timeConstant;
+    }
+
+    // offset is the combined server minus local clock offset in seconds
+    public void update(double offset) {
+        long nano = clock.ticks();
+        long virtual = clock.nowNanos();
+        long target = clock.localNanos() + Math.round(offset * 1e9);
+        long error = target - virtual;
+
+        double freq = updates == 0 ? restoredFreq : clock.frequency();
+        if (updates == 0 || error > STEP_NANOS) {
+            // First update or far behind, jump to the estimate
+            clock.update(freq, 0, 0, error);
+            steps++;
+        }
+        else {
+            double e = error / 1e9;
+            if (updates > 1) {
+                double mu = (nano - lastUpdateNano) / 1e9;
+                freq += e * mu / (4 * timeConstant * timeConstant);
+                if (mu >= FLL_MIN_INTERVAL) {
+                    freq += FLL_WEIGHT * (e - lastError) / mu;
+                }
+                freq = Math.max(-MAX_FREQ, Math.min(MAX_FREQ, freq));
+            }
+
+            double slew = Math.max(-MAX_SLEW, Math.min(MAX_SLEW, e / timeConstant));
+            long slewNanos = slew == 0 ? 0 : Math.round(Math.abs(e / slew) * 1e9);
+            clock.update(freq, slew, slewNanos, 0);
+            lastError = e;
+        }
+
+        lastUpdateNano = nano;
+        updates++;
+    }
+
+    // Starts the loop from a saved frequency instead of zero. The clock is
+    // not touched until the first update steps it, so it does not claim to
+    // be synchronized before any sample arrived.
+    public void restore(double freq) {
+        restoredFreq = Math.max(-MAX_FREQ, Math.min(MAX_FREQ, freq));
+    }
+
+    public SyncClock getClock() {
+        return clock;
+    }
+
+    public double frequencyPpm() {
+        return clock.frequency() * 1e6;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+}
@@ -0,0 +1,173 @@
+package client;
+
+// Minimum-RTT clock filter over a sliding window of the last N samples,
+// optionally also limited by sample age. A monotonic deque of sample indices
+// with increasing RTT keeps the window minimum at its head, so each sample
+// costs amortized O(1) whatever the window size. Running sums of the offsets
+// give the NTP style jitter of the window about the selected offset.
+public class ClockFilter {
+    // Frequency tolerance used to age the dispersion, 15 ppm as in NTP
+    private final static double PHI = 15e-6;
+
+    private final static double PRECISION = 1e-6;
+
+    private final int capacity;
+
+    private final long maxAgeNanos;
+
+    private final double[] rtts;
+
+    private final double[] thetas;
+
+    private final long[] times;
+
+    // Absolute sample indices, increasing RTT from head to tail
+    private final long[] deque;
+
+    private int dqHead = 0;
+
+    private int dqSize = 0;
+
+    // Absolute index of the oldest sample in the window and of the next sample
+    private long first = 0;
+
+    private long next = 0;
+
+    private double sumTheta = 0;
+
+    private double sumTheta2 = 0;
+
+    // maxAgeNanos <= 0 disables age based expiry
+    public ClockFilter(int capacity, long maxAgeNanos) {
+        this.capacity = capacity;
+        this.maxAgeNanos = maxAgeNanos;
+        this.rtts = new double[capacity];
+        this.thetas = new double[capacity];
+        this.times = new long[capacity];
+        this.deque = new long[capacity];
+    }
+
+    public void add(double rtt, double theta, long timeNanos) {
+        expire(timeNanos);
+        if (next - first == capacity) {
+            removeOldest();
+        }
+
+        while (dqSize > 0 && rtts[slot(dequeAt(dqSize - 1))] >= rtt) {
+            dqSize--;
+        }
+        deque[(dqHead + dqSize) % capacity] = next;
+        dqSize++;
+
+        int s = slot(next);
+        rtts[s] = rtt;
+        thetas[s] = theta;
+        times[s] = timeNanos;
+        next++;
+
+        sumTheta += theta;
+        sumTheta2 += theta * theta;
+        // Recompute the sums once per window length to stop rounding error building up
+        if (next % capacity == 0) {
+            resum();
+        }
+    }
+
+    // Drops samples older than the maximum age relative to nowNanos
+    public void expire(long nowNanos) {
+        if (maxAgeNanos <= 0) {
+            return;
+        }
+        while (next > first && nowNanos - times[slot(first)] > maxAgeNanos) {
+            removeOldest();
+        }
+    }
+
+    public int size() {
+        return (int) (next - first);
+    }
+
+    public boolean isEmpty() {
+        return next == first;
+    }
+
+    // Offset of the minimum RTT sample in the window
+    public double offset() {
+        return thetas[slot(dequeAt(0))];
+    }
+
+    public double delay() {
+        return rtts[slot(dequeAt(0))];
+    }
+
+    public long selectedTime() {
+        return times[slot(dequeAt(0))];
+    }
+
+    // RMS difference between the window offsets and the selected offset
+    public double jitter() {
+        int n = size();
+        if (n < 2) {
+            return 0;
+        }
+        double sel = offset();
+        double meanSq = sumTheta2 / n - 2 * sel * sumTheta / n + sel * sel;
+        return Math.sqrt(Math.max(0, meanSq * n / (n - 1)));
+    }
+
+    // Dispersion of the selected sample, growing with its age
+    public double dispersion(long nowNanos) {
+        return PRECISION + PHI * Math.max(0, nowNanos - selectedTime()) / 1e9;
+    }
+
+    // Copies the window oldest first and returns the number of samples, the
+    // arrays must hold capacity samples. Adding the copies back in order to
+    // an empty filter rebuilds the same window.
+    public int copyTo(double[] rttsOut, double[] thetasOut, long[] timesOut) {
+        int n = 0;
+        for (long i = first; i < next; i++, n++) {
+            int s = slot(i);
+            rttsOut[n] = rtts[s];
+            thetasOut[n] = thetas[s];
+            timesOut[n] = times[s];
+        }
+        return n;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private int slot(long index) {
+        return (int) (index % capacity);
+    }
+
+    private long dequeAt(int i) {
+        return deque[(dqHead + i) % capacity];
+    }
+
+    private void removeOldest() {
+        int s = slot(first);
+        sumTheta -= thetas[s];
+        sumTheta2 -= thetas[s] * thetas[s];
+        if (dqSize > 0 && dequeAt(0) == first) {
+            dqHead = (dqHead + 1) % capacity;
+            dqSize--;
+        }
+        first++;
+        if (first == next) {
+            sumTheta = 0;
+            sumTheta2 = 0;
+        }
+    }
+
+    private void resum() {
+        sumTheta = 0;
+        sumTheta2 = 0;
+        for (long i = first; i < next; i++) {
+            double theta = thetas[slot(i)];
+            sumTheta += theta;
+            sumTheta2 += theta * theta;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// What a session has learned about its clock and servers, carried over to
+// the next run: the discipline's frequency, the adaptive poll exponent and,
+// per server, the clock filter window and the advertised reference. A
+// restarted client starts from this instead of from nothing, so the first
+// new samples are combined with a frequency estimate and filter history.
+// Stored as a properties file keyed by server address, so a changed
+// server list restores what still matches.
+public class ClockState {
+    private final static int VERSION = 1;
+
+    // Filter samples older than this are not restored, their offsets have
+    // been extrapolated too far and their dispersion is large anyway
+    private final static long MAX_SAMPLE_AGE_NANOS = 1024 * 1_000_000_000L;
+
+    static class Server {
+        int stratum;
+
+        double rootDelay;
+
+        double rootDispersion;
+
+        int count;
+
+        double[] rtts;
+
+        double[] thetas;
+
+        long[] times;
+    }
+
+    // Epoch ns when the state was captured
+    public final long savedNanos;
+
+    public final double frequency;
+
+    public final int poll;
+
+    private final Map<String, Server> servers = new LinkedHashMap<>();
+
+    private ClockState(long savedNanos, double frequency, int poll) {
+        this.savedNanos = savedNanos;
+        this.frequency = frequency;
+        this.poll = poll;
+    }
+
+    // Copies the state of a running session. Called on the receive thread,
+    // or once it has stopped, so the filters are not changing meanwhile.
+    public static ClockState capture(Client client) {
+        ClockState state = new ClockState(Packet.nowNanos(), client.discipline.getClock().frequency(),
+                client.scheduler.getPoll());
+        for (Peer peer : client.peers) {
+            ClockFilter filter = peer.filter;
+            if (filter.isEmpty()) {
+                continue;
+            }
+            Server server = new Server();
+            server.stratum = peer.stratum;
+            server.rootDelay = peer.rootDelay;
+            server.rootDispersion = peer.rootDispersion;
+            server.rtts = new double[filter.capacity()];
+            server.thetas = new double[filter.capacity()];
+            server.times = new long[filter.capacity()];
+            server.count = filter.copyTo(server.rtts, server.thetas, server.times);
+            state.servers.put(peer.toString(), server);
+        }
+        return state;
+    }
+
+    // Starts the discipline from the saved frequency and refills the filters
+    // of the servers that are still configured. Offsets move with the
+    // frequency error of the local clock, so every restored offset is
+    // extrapolated to nowNanos. The samples keep their original times and
+    // their dispersion grows with their age, so new samples soon win
+    // selection. Returns the number of samples restored.
+    public int apply(Client client, long nowNanos) {
+        client.discipline.restore(frequency);
+
+        int restored = 0;
+        for (Peer peer : client.peers) {
+            Server server = servers.get(peer.toString());
+            if (server == null) {
+                continue;
+            }
+            for (int i = 0; i < server.count; i++) {
+                long age = nowNanos - server.times[i];
+                if (age < 0 || age > MAX_SAMPLE_AGE_NANOS) {
+                    continue;
+                }
+                peer.filter.add(server.rtts[i], server.thetas[i] + frequency * age / 1e9, server.times[i]);
+                restored++;
+            }
+            if (!peer.filter.isEmpty()) {
+                peer.reference(server.stratum, server.rootDelay, server.rootDispersion);
+            }
+        }
+        return restored;
+    }
+
+    public void save(Path file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("version", Integer.toString(VERSION));
+        props.setProperty("saved", Long.toString(savedNanos));
+        props.setProperty("frequency", Double.toString(frequency));
+        props.setProperty("poll", Integer.toString(poll));
+        for (Map.Entry<String, Server> e : servers.entrySet()) {
+            Server server = e.getValue();
+            String prefix = "server." + e.getKey() + ".";
+            props.setProperty(prefix + "stratum", Integer.toString(server.stratum));
+            props.setProperty(prefix + "root-delay", Double.toString(server.rootDelay));
+            props.setProperty(prefix + "root-dispersion", Double.toString(server.rootDispersion));
+
+            // rtt theta time per sample, oldest first
+            StringBuilder samples = new StringBuilder();
+            for (int i = 0; i < server.count; i++) {
+                if (i > 0) {
+                    samples.append(',');
+                }
+                samples.append(server.rtts[i]).append(' ').append(server.thetas[i]).append(' ')
+                       .append(server.times[i]);
+            }
+            props.setProperty(prefix + "samples", samples.toString());
+        }
+
+        StringWriter text = new StringWriter();
+        props.store(text, "Clock state, rewritten while the client runs");
+        Client.writeAtomically(file.toString(), text.toString());
+    }
+
+    // Malformed files throw IllegalArgumentException
+    public static ClockState load(Path file) throws IOException {
+        Properties props = new Properties();
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            props.load(in);
+        }
+        if (!Integer.toString(VERSION).equals(props.getProperty("version"))) {
+            throw new IllegalArgumentException("Unknown version " + props.getProperty("version"));
+        }
+
+        ClockState state = new ClockState(Long.parseLong(value(props, "saved")),
+                Double.parseDouble(value(props, "frequency")), Integer.parseInt(value(props, "poll")));
+        for (String key : props.stringPropertyNames()) {
+            if (!key.startsWith("server.") || !key.endsWith(".samples")) {
+                continue;
+            }
+            String prefix = key.substring(0, key.length() - "samples".length());
+            Server server = new Server();
+            server.stratum = Integer.parseInt(value(props, prefix + "stratum"));
+            server.rootDelay = Double.parseDouble(value(props, prefix + "root-delay"));
+            server.rootDispersion = Double.parseDouble(value(props, prefix + "root-dispersion"));
+
+            String samples = props.getProperty(key).trim();
+            String[] parts = samples.isEmpty() ? new String[0] : samples.split(",");
+            server.count = parts.length;
+            server.rtts = new double[parts.length];
+            server.thetas = new double[parts.length];
+            server.times = new long[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                String[] sample = parts[i].trim().split(" ");
+                if (sample.length != 3) {
+                    throw new IllegalArgumentException("Bad sample " + parts[i] + " in " + key);
+                }
+                server.rtts[i] = Double.parseDouble(sample[0]);
+                server.thetas[i] = Double.parseDouble(sample[1]);
+                server.times[i] = Long.parseLong(sample[2]);
+            }
+            state.servers.put(prefix.substring("server.".length(), prefix.length() - 1), server);
+        }
+        return state;
+    }
+
+    private static String value(Properties props, String key) {
+        String value = props.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + key);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,355 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Config {
+    public final static String USAGE = "Usage: ./client <server>[,<server>...] [mins] [options]\n" +
+            "  <server> is host or host:port, the port defaults to 4011\n" +
+            "  --text                Use the legacy text packet format\n" +
+            "  --max-in-flight=N     Capacity of the in-flight request table\n" +
+            "  --timeout-ms=N        Drop requests unanswered after N ms\n" +
+            "  --interval-ms=X       Poll interval in ms, fractions allowed\n" +
+            "  --burst=N             Probes sent back to back per poll\n" +
+            "  --spin                Busy-spin the last microseconds before each poll\n" +
+            "  --adaptive            Adapt the interval between 2^min-poll and 2^max-poll s\n" +
+            "  --min-poll=N --max-poll=N\n" +
+            "  --filter-size=N       Samples in the minimum RTT filter window\n" +
+            "  --filter-age-ms=N     Also expire filter samples older than N ms\n" +
+            "  --merge-histo=FILE    Merge histograms exported by an earlier run\n" +
+            "  --time-constant=S     Clock discipline time constant in seconds\n" +
+            "  --port=N              Local UDP port, 0 picks a free one\n" +
+            "  --load=N              Simulate N clients against the server instead\n" +
+            "  --load-loops=N        Event loop threads driving the simulated clients\n" +
+            "  --metrics-port=N      Serve live metrics on http://127.0.0.1:N/metrics\n" +
+            "  --journal=DIR         Append raw samples to memory-mapped segments in DIR\n" +
+            "  --journal-segment=N   Records per journal segment\n" +
+            "  --receive=MODE        blocking, or busy to poll a non-blocking channel\n" +
+            "  --cpu=N               Pin the receive thread to CPU N (Linux, needs taskset)\n" +
+            "  --kernel-timestamps   Stamp replies with SO_TIMESTAMPNS, needs --receive=busy\n" +
+            "  --report-every=MIN    Rewrite report.log and the histograms every MIN minutes\n" +
+            "  --drain-ms=N          Wait up to N ms for outstanding replies when stopping\n" +
+            "  --quiet               Write samples to log.txt only, not to the console\n" +
+            "  --listen=GROUP:PORT   Follow a multicast time stream, the first server calibrates it\n" +
+            "  --listen-if=NAME      Interface to join the multicast group on\n" +
+            "  --state=FILE          Keep the learned clock state in FILE across runs\n" +
+            "  --keys=FILE --key=ID  Authenticate requests and replies with key ID from FILE";
+
+    // Poll exponent bounds, 1/64 s to about 36 hours
+    private final static int MIN_POLL_LIMIT = -6;
+
+    private final static int MAX_POLL_LIMIT = 17;
+
+    // One or more servers, polled concurrently over one socket
+    public List<String> servers = new ArrayList<>();
+
+    // 0 runs until the process is stopped, -1 asks on stdin
+    public int mins = -1;
+
+    // Use the legacy space separated text format instead of binary packets
+    public boolean textFormat = false;
+
+    // Capacity of the in-flight request table
+    public int maxInFlight = 1024;
+
+    // Time after which an unanswered request counts as dropped
+    public long timeoutMs = 2000;
+
+    public double intervalMs = 10 * 1000;
+
+    public int burst = 1;
+
+    public boolean spin = false;
+
+    public boolean adaptive = false;
+
+    // Poll exponents in log2 seconds, negative values poll faster than 1 Hz
+    public int minPoll = 4;
+
+    public int maxPoll = 10;
+
+    public int filterSize = 8;
+
+    // 0 keeps samples until they are pushed out by newer ones
+    public long filterAgeMs = 0;
+
+    // histo.dat of an earlier run to merge into this run's histograms
+    public String mergeHisto = null;
+
+    // Time constant of the clock discipline loop in seconds
+    public double timeConstant = 32;
+
+    // Local port the session binds, replies come back to it
+    public int port = 4012;
+
+    // Number of simulated clients in load generator mode, 0 runs a normal session
+    public int load = 0;
+
+    public int loadLoops = Runtime.getRuntime().availableProcessors();
+
+    // Local HTTP port for Prometheus style metrics, 0 leaves only the JMX bean
+    public int metricsPort = 0;
+
+    // Directory of the binary sample journal, null disables it
+    public String journal = null;
+
+    public int journalSegmentRecords = Journal.DEFAULT_SEGMENT_RECORDS;
+
+    // Busy polling trades a CPU for not waiting on a scheduler wakeup per reply
+    public boolean busyReceive = false;
+
+    // CPU for the receive thread, -1 leaves it to the scheduler
+    public int cpu = -1;
+
+    public boolean kernelTimestamps = false;
+
+    // Minutes between snapshot reports, 0 writes only the final report
+    public int reportEveryMin = 0;
+
+    // Bound on waiting for outstanding replies at the end of a run
+    public long drainMs = 2000;
+
+    // Write samples to log.txt only instead of echoing them to the console
+    public boolean quiet = false;
+
+    // Multicast group and port to listen on, null polls only
+    public String listen = null;
+
+    // Interface for the group, null picks the first multicast capable one
+    public String listenIf = null;
+
+    // Clock state file loaded at start and rewritten while running, null disables it
+    public String state = null;
+
+    // Key file and the id of the key to sign requests and check replies with,
+    // 0 sends and accepts unauthenticated packets
+    public String keys = null;
+
+    public int key = 0;
+
+    public static Config parse(String[] args) {
+        Config config = new Config();
+        List<String> positional = new ArrayList<>();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+                continue;
+            }
+
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+            String value = eq < 0 ? null : arg.substring(eq + 1);
+            config.set(name, value);
+        }
+
+        if (positional.size() < 1 || positional.size() > 2) {
+            throw new IllegalArgumentException("Expected <server-address> [mins]");
+        }
+
+        for (String server : positional.get(0).split(",")) {
+            if (!server.isEmpty()) {
+                config.servers.add(server);
+            }
+        }
+        if (config.servers.isEmpty() || config.servers.size() > Peer.MAX_PEERS) {
+            throw new IllegalArgumentException("Expected 1 to " + Peer.MAX_PEERS + " servers");
+        }
+        if (positional.size() == 2) {
+            config.mins = Integer.parseInt(positional.get(1));
+            if (config.mins < 0) {
+                throw new IllegalArgumentException("mins must not be negative");
+            }
+        }
+
+        if (config.load > 0 && (config.textFormat || config.servers.size() > 1)) {
+            throw new IllegalArgumentException("--load needs a single server and the binary format");
+        }
+
+        if (config.listen != null && (config.textFormat || config.load > 0
+                || config.servers.size() >= Peer.MAX_PEERS)) {
+            throw new IllegalArgumentException("--listen needs the binary format and a free server slot");
+        }
+
+        if ((config.keys == null) != (config.key == 0) || (config.key > 0 && config.textFormat)) {
+            throw new IllegalArgumentException("--keys and --key go together and need the binary format");
+        }
+
+        if (config.kernelTimestamps && !config.busyReceive) {
+            throw new IllegalArgumentException("--kernel-timestamps needs --receive=busy");
+        }
+
+        if (config.minPoll > config.maxPoll) {
+            throw new IllegalArgumentException("--min-poll must not exceed --max-poll");
+        }
+
+        return config;
+    }
+
+    private static String required(String name, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("--" + name + " needs a value");
+        }
+        return value;
+    }
+
+    // Outside these bounds the interval rounds to 0 or overflows the deadlines
+    private static int pollExponent(String name, String value) {
+        int poll = Integer.parseInt(required(name, value));
+        if (poll < MIN_POLL_LIMIT || poll > MAX_POLL_LIMIT) {
+            throw new IllegalArgumentException("--" + name + " must be between " + MIN_POLL_LIMIT
+                    + " and " + MAX_POLL_LIMIT);
+        }
+        return poll;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "text":
+                textFormat = value == null || Boolean.parseBoolean(value);
+                break;
+            case "max-in-flight":
+                maxInFlight = Integer.parseInt(required(name, value));
+                if (maxInFlight < 1) {
+                    throw new IllegalArgumentException("--max-in-flight must be at least 1");
+                }
+                break;
+            case "timeout-ms":
+                timeoutMs = Long.parseLong(required(name, value));
+                if (timeoutMs < 1) {
+                    throw new IllegalArgumentException("--timeout-ms must be at least 1");
+                }
+                break;
+            case "interval-ms":
+                intervalMs = Double.parseDouble(required(name, value));
+                if (!(intervalMs > 0)) {
+                    throw new IllegalArgumentException("--interval-ms must be positive");
+                }
+                break;
+            case "burst":
+                burst = Integer.parseInt(required(name, value));
+                if (burst < 1) {
+                    throw new IllegalArgumentException("--burst must be at least 1");
+                }
+                break;
+            case "spin":
+                spin = value == null || Boolean.parseBoolean(value);
+                break;
+            case "adaptive":
+                adaptive = value == null || Boolean.parseBoolean(value);
+                break;
+            case "min-poll":
+                minPoll = pollExponent(name, value);
+                break;
+            case "max-poll":
+                maxPoll = pollExponent(name, value);
+                break;
+            case "filter-size":
+                filterSize = Integer.parseInt(required(name, value));
+                if (filterSize < 1) {
+                    throw new IllegalArgumentException("--filter-size must be at least 1");
+                }
+                break;
+            case "filter-age-ms":
+                filterAgeMs = Long.parseLong(required(name, value));
+                break;
+            case "merge-histo":
+                mergeHisto = required(name, value);
+                break;
+            case "time-constant":
+                timeConstant = Double.parseDouble(required(name, value));
+                if (!(timeConstant > 0)) {
+                    throw new IllegalArgumentException("--time-constant must be positive");
+                }
+                break;
+            case "port":
+                port = Integer.parseInt(required(name, value));
+                if (port < 0 || port > 65535) {
+                    throw new IllegalArgumentException("--port must be between 0 and 65535");
+                }
+                break;
+            case "load":
+                load = Integer.parseInt(required(name, value));
+                if (load < 0) {
+                    throw new IllegalArgumentException("--load must not be negative");
+                }
+                break;
+            case "load-loops":
+                loadLoops = Integer.parseInt(required(name, value));
+                if (loadLoops < 1) {
+                    throw new IllegalArgumentException("--load-loops must be at least 1");
+                }
+                break;
+            case "metrics-port":
+                metricsPort = Integer.parseInt(required(name, value));
+                if (metricsPort < 0 || metricsPort > 65535) {
+                    throw new IllegalArgumentException("--metrics-port must be between 0 and 65535");
+                }
+                break;
+            case "journal":
+                journal = required(name, value);
+                break;
+            case "journal-segment":
+                journalSegmentRecords = Integer.parseInt(required(name, value));
+                if (journalSegmentRecords < 1
+                        || journalSegmentRecords > (Integer.MAX_VALUE - Journal.HEADER_SIZE) / Journal.RECORD_SIZE) {
+                    throw new IllegalArgumentException("--journal-segment is out of range");
+                }
+                break;
+            case "receive":
+                value = required(name, value);
+                if (!value.equals("blocking") && !value.equals("busy")) {
+                    throw new IllegalArgumentException("--receive must be blocking or busy");
+                }
+                busyReceive = value.equals("busy");
+                break;
+            case "cpu":
+                cpu = Integer.parseInt(required(name, value));
+                if (cpu < 0) {
+                    throw new IllegalArgumentException("--cpu must not be negative");
+                }
+                break;
+            case "kernel-timestamps":
+                kernelTimestamps = value == null || Boolean.parseBoolean(value);
+                break;
+            case "report-every":
+                reportEveryMin = Integer.parseInt(required(name, value));
+                if (reportEveryMin < 0) {
+                    throw new IllegalArgumentException("--report-every must not be negative");
+                }
+                break;
+            case "drain-ms":
+                drainMs = Long.parseLong(required(name, value));
+                if (drainMs < 0) {
+                    throw new IllegalArgumentException("--drain-ms must not be negative");
+                }
+                break;
+            case "listen":
+                listen = required(name, value);
+                if (listen.lastIndexOf(':') < 1 || listen.endsWith("]")) {
+                    throw new IllegalArgumentException("--listen needs <group>:<port>");
+                }
+                break;
+            case "listen-if":
+                listenIf = required(name, value);
+                break;
+            case "state":
+                state = required(name, value);
+                break;
+            case "keys":
+                keys = required(name, value);
+                break;
+            case "key":
+                key = Integer.parseInt(required(name, value));
+                if (key < 1) {
+                    throw new IllegalArgumentException("--key must be at least 1");
+                }
+                break;
+            case "quiet":
+                quiet = value == null || Boolean.parseBoolean(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+}
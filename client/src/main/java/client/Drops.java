@@ -0,0 +1,39 @@
+package client;
+
+// Count of dropped requests plus the most recent ones for the report.
+// Drops come from the timing wheel and the sender, so access is synchronized.
+public class Drops {
+    private final int[] seqs;
+
+    private final double[] times;
+
+    private long count = 0;
+
+    public Drops(int capacity) {
+        this.seqs = new int[capacity];
+        this.times = new double[capacity];
+    }
+
+    public synchronized void add(int seq, double sentTime) {
+        int idx = (int) (count % seqs.length);
+        seqs[idx] = seq;
+        times[idx] = sentTime;
+        count++;
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    // Appends the retained drops, oldest first
+    public synchronized void appendTo(StringBuilder sb) {
+        long first = Math.max(0, count - seqs.length);
+        if (first > 0) {
+            sb.append(String.format("(%d earlier drops not shown)\n", first));
+        }
+        for (long i = first; i < count; i++) {
+            int idx = (int) (i % seqs.length);
+            sb.append(String.format("[%s, %-8.6f]\n", Peer.label(seqs[idx]), times[idx]));
+        }
+    }
+}
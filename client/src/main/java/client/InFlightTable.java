@@ -0,0 +1,92 @@
+package client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Outstanding requests indexed by seq mod capacity. A slot holds the seq of
+// its request or 0 when empty; match and expire claim a request by CAS on the
+// slot, so each request is resolved exactly once without locks.
+// put() must only be called from the single sending thread.
+public class InFlightTable {
+    public interface Expired {
+        void expired(int seq, long sentNanos);
+    }
+
+    public final static long NOT_FOUND = Long.MIN_VALUE;
+
+    private final AtomicIntegerArray seqs;
+
+    private final AtomicLongArray sentNanos;
+
+    private final int mask;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final Expired expired;
+
+    public InFlightTable(int capacity, Expired expired) {
+        int slots = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.seqs = new AtomicIntegerArray(slots);
+        this.sentNanos = new AtomicLongArray(slots);
+        this.mask = slots - 1;
+        this.expired = expired;
+    }
+
+    public void put(int seq, long nanos) {
+        int slot = seq & mask;
+
+        // A live request still in the slot means the table wrapped, drop it
+        int old = seqs.get(slot);
+        if (old != 0) {
+            long oldNanos = sentNanos.get(slot);
+            if (seqs.compareAndSet(slot, old, 0)) {
+                size.decrementAndGet();
+                expired.expired(old, oldNanos);
+            }
+        }
+
+        sentNanos.set(slot, nanos);
+        seqs.set(slot, seq);
+        size.incrementAndGet();
+    }
+
+    // Returns the send time of seq and removes it, or NOT_FOUND if it already
+    // matched, expired or was never sent
+    public long match(int seq) {
+        int slot = seq & mask;
+        if (seq == 0 || seqs.get(slot) != seq) {
+            return NOT_FOUND;
+        }
+
+        long nanos = sentNanos.get(slot);
+        if (!seqs.compareAndSet(slot, seq, 0)) {
+            return NOT_FOUND;
+        }
+
+        size.decrementAndGet();
+        return nanos;
+    }
+
+    // Drops seq if it is still outstanding, returns false if it already
+    // matched, expired or was never sent
+    public boolean expire(int seq) {
+        int slot = seq & mask;
+        if (seq == 0 || seqs.get(slot) != seq) {
+            return false;
+        }
+
+        long nanos = sentNanos.get(slot);
+        if (!seqs.compareAndSet(slot, seq, 0)) {
+            return false;
+        }
+
+        size.decrementAndGet();
+        expired.expired(seq, nanos);
+        return true;
+    }
+
+    public int size() {
+        return size.get();
+    }
+}
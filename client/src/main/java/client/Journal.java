@@ -0,0 +1,205 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Append-only journal of raw samples in memory-mapped segment files. The
+// receive thread writes fixed size records straight into the mapping, so
+// appending costs a few stores and no system calls until a segment fills
+// up and the next one is mapped. Records are only ever written by one
+// thread; a crash leaves at most the unwritten tail zeroed. The flags of a
+// record go last and always carry FLAG_COMMITTED, so readers take the
+// first record without it as the end of the segment.
+public class Journal {
+    public final static int MAGIC = 0x434a524e; // "CJRN"
+
+    public final static int VERSION = 1;
+
+    // Segment header: magic, version, record size, then the servers as text
+    public final static int HEADER_SIZE = 4096;
+
+    public final static int RECORD_SIZE = 40;
+
+    // Record layout, NTP naming: T1 client send, T2 server receive,
+    // T3 server transmit, T4 client receive, all ns since epoch
+    public final static int T1_OFFSET = 0;
+
+    public final static int T2_OFFSET = 8;
+
+    public final static int T3_OFFSET = 16;
+
+    public final static int T4_OFFSET = 24;
+
+    public final static int SEQ_OFFSET = 32;
+
+    public final static int PEER_OFFSET = 36;
+
+    public final static int FLAGS_OFFSET = 38;
+
+    public final static int FLAG_KISS = 1;
+
+    // No matching request, the reply came after its timeout
+    public final static int FLAG_LATE = 2;
+
+    public final static int FLAG_TEXT = 4;
+
+    // T4 source, neither flag means a userspace stamp after a blocking receive
+    public final static int FLAG_BUSY_STAMP = 8;
+
+    public final static int FLAG_KERNEL_STAMP = 16;
+
+    // The server was not synchronized itself, the sample was not used
+    public final static int FLAG_UNSYNCHRONIZED = 32;
+
+    // Multicast packet, T1 is synthesized from the calibrated one-way delay
+    public final static int FLAG_BROADCAST = 64;
+
+    // Set on every record, written last
+    public final static int FLAG_COMMITTED = 0x4000;
+
+    public final static int DEFAULT_SEGMENT_RECORDS = 1 << 20;
+
+    private final static String PREFIX = "segment-";
+
+    private final static String SUFFIX = ".journal";
+
+    private final Path dir;
+
+    private final int segmentRecords;
+
+    private final byte[] header;
+
+    private MappedByteBuffer segment;
+
+    private int segmentIndex;
+
+    private int records = 0;
+
+    private long written = 0;
+
+    // servers is stored in every segment header so a segment stands alone
+    public Journal(Path dir, int segmentRecords, List<String> servers) throws IOException {
+        this.dir = dir;
+        this.segmentRecords = segmentRecords;
+
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+        h.putInt(MAGIC);
+        h.putInt(VERSION);
+        h.putInt(RECORD_SIZE);
+        byte[] text = String.join("\n", servers).getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, HEADER_SIZE - 16);
+        h.putInt(length);
+        h.put(text, 0, length);
+        this.header = h.array();
+
+        Files.createDirectories(dir);
+        List<Path> existing = segments(dir);
+        this.segmentIndex = existing.isEmpty() ? 0 : index(existing.get(existing.size() - 1)) + 1;
+        map();
+    }
+
+    private void map() throws IOException {
+        Path file = dir.resolve(String.format("%s%06d%s", PREFIX, segmentIndex, SUFFIX));
+        long size = HEADER_SIZE + (long) segmentRecords * RECORD_SIZE;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        segment.duplicate().position(0).put(header, 0, HEADER_SIZE);
+        records = 0;
+    }
+
+    // Receive thread only
+    public void append(int seq, int peer, int flags, long t1, long t2, long t3, long t4) {
+        if (records == segmentRecords) {
+            try {
+                segment.force();
+                segmentIndex++;
+                map();
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: Journal rollover failed. " + e.getMessage());
+                return;
+            }
+        }
+
+        int at = HEADER_SIZE + records * RECORD_SIZE;
+        segment.putLong(at + T1_OFFSET, t1);
+        segment.putLong(at + T2_OFFSET, t2);
+        segment.putLong(at + T3_OFFSET, t3);
+        segment.putLong(at + T4_OFFSET, t4);
+        segment.putInt(at + SEQ_OFFSET, seq);
+        segment.putShort(at + PEER_OFFSET, (short) peer);
+        // Goes last and marks the record as complete
+        segment.putShort(at + FLAGS_OFFSET, (short) (flags | FLAG_COMMITTED));
+        records++;
+        written++;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public void close() {
+        segment.force();
+    }
+
+    public interface RecordHandler {
+        void record(List<String> servers, ByteBuffer buf, int at);
+    }
+
+    // Segment files of dir in write order
+    public static List<Path> segments(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static int index(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    // Feeds every complete record of every segment to handler, in order
+    public static long read(Path dir, RecordHandler handler) throws IOException {
+        long count = 0;
+        for (Path file : segments(dir)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION
+                        || buf.getInt(8) != RECORD_SIZE) {
+                    throw new IOException("Not a journal segment: " + file);
+                }
+
+                byte[] text = new byte[buf.getInt(12)];
+                buf.duplicate().position(16).get(text);
+                List<String> servers = new ArrayList<>();
+                Collections.addAll(servers, new String(text, StandardCharsets.UTF_8).split("\n"));
+
+                for (int at = HEADER_SIZE; at + RECORD_SIZE <= buf.limit(); at += RECORD_SIZE) {
+                    if ((buf.getShort(at + FLAGS_OFFSET) & FLAG_COMMITTED) == 0) {
+                        break;
+                    }
+                    handler.record(servers, buf, at);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
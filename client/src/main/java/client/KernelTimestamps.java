@@ -0,0 +1,80 @@
+package client;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+// Kernel receive timestamps (SO_TIMESTAMPNS) through the optional JNI shim
+// in src/main/c, built with build-native. Everything here degrades to
+// "unavailable" when the library or the channel's descriptor cannot be
+// reached, and the receiver falls back to userspace stamps.
+public class KernelTimestamps {
+    private final static String LIBRARY = "clocktimestamps";
+
+    private final static boolean LOADED = load();
+
+    private final int fd;
+
+    // ts, IPv4 source address, source port from the last receive
+    private final long[] meta = new long[3];
+
+    private static boolean load() {
+        try {
+            System.loadLibrary(LIBRARY);
+            return true;
+        }
+        catch (UnsatisfiedLinkError | SecurityException e) {
+            return false;
+        }
+    }
+
+    private static native int enable(int fd);
+
+    private static native int receive(int fd, ByteBuffer buf, int capacity, long[] meta);
+
+    private KernelTimestamps(int fd) {
+        this.fd = fd;
+    }
+
+    // Null when kernel timestamps cannot be used on channel, reason says why
+    public static KernelTimestamps open(DatagramChannel channel, StringBuilder reason) {
+        if (!LOADED) {
+            reason.append("lib" + LIBRARY + " not found on java.library.path");
+            return null;
+        }
+
+        int fd;
+        try {
+            // Needs --add-opens java.base/sun.nio.ch=ALL-UNNAMED
+            Field field = channel.getClass().getDeclaredField("fdVal");
+            field.setAccessible(true);
+            fd = field.getInt(channel);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            reason.append("cannot reach the socket descriptor (" + e.getMessage() + ")");
+            return null;
+        }
+
+        int err = enable(fd);
+        if (err != 0) {
+            reason.append("SO_TIMESTAMPNS failed with errno " + -err);
+            return null;
+        }
+        return new KernelTimestamps(fd);
+    }
+
+    // Non-blocking, returns the datagram length, 0 if none or -errno
+    public int receive(ByteBuffer direct) {
+        return receive(fd, direct, direct.capacity(), meta);
+    }
+
+    // Kernel receive time of the last datagram, 0 if the kernel gave none
+    public long timestamp() {
+        return meta[0];
+    }
+
+    // IPv4 source of the last datagram as an int, -1 for other families
+    public long sourceAddress() {
+        return meta[1];
+    }
+}
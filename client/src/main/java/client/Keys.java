@@ -0,0 +1,169 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Symmetric keys for authenticated packets, shared by client and server.
+// An authenticated packet is the 48 byte packet followed by a 4 byte key
+// id and an 8 byte SipHash-2-4 MAC of the first 48 bytes. The key state
+// SipHash starts from is derived once per key when the file is loaded, so
+// computing or checking a MAC is a few dozen arithmetic operations on the
+// packet buffer in place, with no allocation.
+//
+// Key file: one key per line, "<id> <32 hex digit key>", '#' starts a comment.
+public class Keys {
+    public final static int KEY_ID_OFFSET = Packet.SIZE;
+
+    public final static int MAC_OFFSET = KEY_ID_OFFSET + 4;
+
+    // Size of an authenticated packet
+    public final static int SIZE = MAC_OFFSET + 8;
+
+    public final static class Key {
+        public final int id;
+
+        // SipHash state after the key is mixed in
+        final long v0;
+
+        final long v1;
+
+        final long v2;
+
+        final long v3;
+
+        Key(int id, long k0, long k1) {
+            this.id = id;
+            this.v0 = k0 ^ 0x736f6d6570736575L;
+            this.v1 = k1 ^ 0x646f72616e646f6dL;
+            this.v2 = k0 ^ 0x6c7967656e657261L;
+            this.v3 = k1 ^ 0x7465646279746573L;
+        }
+    }
+
+    // Few keys, looked up by a scan so no id is ever boxed
+    private final Key[] keys;
+
+    private Keys(List<Key> keys) {
+        this.keys = keys.toArray(new Key[0]);
+    }
+
+    // Malformed files throw IllegalArgumentException
+    public static Keys load(Path file) throws IOException {
+        return parse(Files.readAllLines(file));
+    }
+
+    // Lines in the key file format
+    public static Keys parse(List<String> lines) {
+        List<Key> keys = new ArrayList<>();
+        for (String line : lines) {
+            int hash = line.indexOf('#');
+            String[] fields = (hash < 0 ? line : line.substring(0, hash)).trim().split("\\s+");
+            if (fields.length == 1 && fields[0].isEmpty()) {
+                continue;
+            }
+            if (fields.length != 2 || fields[1].length() != 32) {
+                throw new IllegalArgumentException("Expected <id> <32 hex digits> in \"" + line + "\"");
+            }
+            int id = Integer.parseInt(fields[0]);
+            if (id < 1) {
+                throw new IllegalArgumentException("Key ids start at 1");
+            }
+            // SipHash reads the 16 byte key as two little-endian words
+            long k0 = Long.reverseBytes(Long.parseUnsignedLong(fields[1].substring(0, 16), 16));
+            long k1 = Long.reverseBytes(Long.parseUnsignedLong(fields[1].substring(16), 16));
+            keys.add(new Key(id, k0, k1));
+        }
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("No keys");
+        }
+        return new Keys(keys);
+    }
+
+    // Key id from file, as given by --keys and --key
+    public static Key load(Path file, int id) throws IOException {
+        Key key = load(file).get(id);
+        if (key == null) {
+            throw new IllegalArgumentException("No key " + id + " in " + file);
+        }
+        return key;
+    }
+
+    // The key with this id, null if there is none
+    public Key get(int id) {
+        for (Key key : keys) {
+            if (key.id == id) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    // Key of the authenticated packet in buf[0, length) if its MAC is
+    // right, else null. A packet without a MAC is not authenticated.
+    public Key verify(ByteBuffer buf, int length) {
+        if (length < SIZE) {
+            return null;
+        }
+        Key key = get(buf.getInt(KEY_ID_OFFSET));
+        return key != null && verify(key, buf, length) ? key : null;
+    }
+
+    // True if buf[0, length) carries a right MAC made with key
+    public static boolean verify(Key key, ByteBuffer buf, int length) {
+        return length >= SIZE && buf.getInt(KEY_ID_OFFSET) == key.id
+                && buf.getLong(MAC_OFFSET) == mac(key, buf, Packet.SIZE);
+    }
+
+    // Appends key id and MAC to the packet in buf[0, 48), the packet then
+    // ends at SIZE. Call after the last field is written. Like the Packet
+    // fields, key id and MAC are written in the buffer's order, which is
+    // big-endian for every buffer that goes on the wire.
+    public static void sign(Key key, ByteBuffer buf) {
+        buf.limit(SIZE);
+        buf.putInt(KEY_ID_OFFSET, key.id);
+        buf.putLong(MAC_OFFSET, mac(key, buf, Packet.SIZE));
+    }
+
+    // SipHash-2-4 of buf[0, length), read with absolute gets so the buffer's
+    // position and limit are left alone. SipHash reads little-endian words,
+    // so the result does not depend on the buffer's byte order.
+    public static long mac(Key key, ByteBuffer buf, int length) {
+        boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+        long v0 = key.v0;
+        long v1 = key.v1;
+        long v2 = key.v2;
+        long v3 = key.v3;
+
+        int end = length & ~7;
+        long last = (long) length << 56;
+        for (int i = end; i < length; i++) {
+            last |= (buf.get(i) & 0xffL) << (8 * (i - end));
+        }
+
+        for (int i = 0; i <= end; i += 8) {
+            long m = i == end ? last : bigEndian ? Long.reverseBytes(buf.getLong(i)) : buf.getLong(i);
+            v3 ^= m;
+            for (int r = 0; r < 2; r++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+
+        v2 ^= 0xff;
+        for (int r = 0; r < 4; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+}
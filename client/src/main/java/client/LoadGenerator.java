@@ -0,0 +1,442 @@
+package client;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+// Load generator mode: thousands of simulated clients, each with its own
+// socket and poll phase, driven by a few shared NIO event loops. Only the
+// request/reply exchange is simulated, there is no filter or discipline,
+// so the numbers describe the server and the path to it.
+public class LoadGenerator {
+    private final static String REPORT = "report.log";
+
+    private final static int STATS_INTERVAL = 10;
+
+    // Outstanding requests remembered per simulated client
+    private final static int RING = 16;
+
+    private final static int HISTO_BITS = 7;
+
+    private final static long HISTO_HIGHEST = 1L << 40;
+
+    // Descriptors of an NIO selector, the epoll instance and its wakeup pipe
+    private final static int SELECTOR_DESCRIPTORS = 3;
+
+    // Left for log and report files and the metrics endpoint
+    private final static int SPARE_DESCRIPTORS = 64;
+
+    private final InetSocketAddress target;
+
+    private final int clients;
+
+    private final long intervalNanos;
+
+    private final long timeoutNanos;
+
+    private final Loop[] loops;
+
+    private volatile boolean sending = true;
+
+    private volatile boolean running = true;
+
+    private final Object finishLock = new Object();
+
+    private boolean finished = false;
+
+    private LogHistogram rttTotal = new LogHistogram(HISTO_BITS, HISTO_HIGHEST);
+
+    // Requests are signed and replies checked with it, as in a session
+    private final Keys.Key key;
+
+    public LoadGenerator(InetAddress server, int port, Config config) throws IOException {
+        this.key = config.key > 0 ? Keys.load(Paths.get(config.keys), config.key) : null;
+        this.target = new InetSocketAddress(server, port);
+        this.clients = config.load;
+        this.intervalNanos = Math.round(config.intervalMs * 1_000_000L);
+        this.timeoutNanos = config.timeoutMs * 1_000_000L;
+
+        int loopCount = Math.min(config.loadLoops, clients);
+        this.loops = new Loop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            // Spread clients evenly, loop i gets clients i, i + loopCount, ...
+            int count = (clients - i + loopCount - 1) / loopCount;
+            loops[i] = new Loop(i, count);
+        }
+    }
+
+    // One simulated client, only touched by its loop thread
+    private static class Sim {
+        DatagramChannel channel;
+
+        int counter = 0;
+
+        final int[] seqs = new int[RING];
+
+        final long[] sentNanos = new long[RING];
+    }
+
+    private class Loop extends Thread {
+        private final int index;
+
+        private final Sim[] sims;
+
+        private final long[] phases;
+
+        private Selector selector;
+
+        // Written by the loop thread only
+        private volatile long sent = 0;
+
+        private volatile long received = 0;
+
+        private volatile long lost = 0;
+
+        private volatile long late = 0;
+
+        private volatile long kisses = 0;
+
+        private volatile long errors = 0;
+
+        // Replaced by the stats timer under the loop's lock
+        private LogHistogram rtt = new LogHistogram(HISTO_BITS, HISTO_HIGHEST);
+
+        Loop(int index, int count) {
+            super("load-loop-" + index);
+            this.index = index;
+            this.sims = new Sim[count];
+            this.phases = new long[count];
+        }
+
+        void open() throws IOException {
+            selector = Selector.open();
+            int stride = loops.length;
+            for (int i = 0; i < sims.length; i++) {
+                int id = index + i * stride;
+                Sim sim = new Sim();
+                sim.channel = DatagramChannel.open();
+                sim.channel.bind(localAddress(id));
+                sim.channel.connect(target);
+                sim.channel.configureBlocking(false);
+                sim.channel.register(selector, SelectionKey.OP_READ, sim);
+                sims[i] = sim;
+
+                // Polls of all clients are spread evenly over the interval
+                phases[i] = intervalNanos * id / clients;
+            }
+        }
+
+        // On loopback every client gets its own 127.x.y.z source, so per
+        // address limits on the server see them as separate hosts
+        private InetSocketAddress localAddress(int id) throws IOException {
+            InetAddress server = target.getAddress();
+            if (!(server instanceof Inet4Address) || !server.isLoopbackAddress()) {
+                return new InetSocketAddress(0);
+            }
+            int host = id + 1;
+            byte[] addr = {127, (byte) (host >>> 16), (byte) (host >>> 8), (byte) host};
+            return new InetSocketAddress(InetAddress.getByAddress(addr), 0);
+        }
+
+        public void run() {
+            ByteBuffer in = ByteBuffer.allocateDirect(1024);
+            ByteBuffer out = ByteBuffer.allocateDirect(key != null ? Keys.SIZE : Packet.SIZE);
+            long roundStart = System.nanoTime();
+            int next = 0;
+            long drainUntil = Long.MAX_VALUE;
+
+            while (running) {
+                long now = System.nanoTime();
+                if (sending) {
+                    while (roundStart + phases[next] - now <= 0) {
+                        send(sims[next], out);
+                        if (++next == sims.length) {
+                            next = 0;
+                            roundStart += intervalNanos;
+                            if (roundStart + intervalNanos - now < 0) {
+                                // Fell a whole round behind, skip instead of bursting
+                                roundStart = now;
+                            }
+                        }
+                    }
+                }
+                else if (drainUntil == Long.MAX_VALUE) {
+                    drainUntil = now + timeoutNanos;
+                }
+                else if (now - drainUntil >= 0) {
+                    break;
+                }
+
+                long wait = sending ? roundStart + phases[next] - now : drainUntil - now;
+                try {
+                    int ready = wait < 1_000_000L
+                            ? selector.selectNow() : selector.select(wait / 1_000_000L);
+                    if (ready > 0) {
+                        receive(in);
+                    }
+                }
+                catch (IOException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                    break;
+                }
+            }
+
+            // Whatever is still outstanding after the drain is lost
+            long outstanding = 0;
+            for (Sim sim : sims) {
+                for (int seq : sim.seqs) {
+                    if (seq != 0) {
+                        outstanding++;
+                    }
+                }
+                try {
+                    sim.channel.close();
+                }
+                catch (IOException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
+            }
+            lost += outstanding;
+        }
+
+        private void send(Sim sim, ByteBuffer out) {
+            sim.counter = (sim.counter + 1) & Integer.MAX_VALUE;
+            if (sim.counter == 0) {
+                sim.counter = 1;
+            }
+            int slot = sim.counter & (RING - 1);
+            if (sim.seqs[slot] != 0) {
+                lost++;
+            }
+
+            Packet.encodeRequest(out, sim.counter, Packet.nowNanos());
+            if (key != null) {
+                Keys.sign(key, out);
+            }
+            out.position(0);
+            sim.seqs[slot] = sim.counter;
+            sim.sentNanos[slot] = System.nanoTime();
+            try {
+                sim.channel.write(out);
+                sent++;
+            }
+            catch (IOException e) {
+                sim.seqs[slot] = 0;
+                errors++;
+            }
+        }
+
+        private void receive(ByteBuffer in) {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Sim sim = (Sim) key.attachment();
+
+                while (true) {
+                    in.clear();
+                    int length;
+                    try {
+                        length = sim.channel.read(in);
+                    }
+                    catch (IOException e) {
+                        // ICMP port unreachable surfaces here, the request is lost anyway
+                        errors++;
+                        break;
+                    }
+                    if (length <= 0) {
+                        break;
+                    }
+                    handle(sim, in, length, System.nanoTime());
+                }
+            }
+        }
+
+        private void handle(Sim sim, ByteBuffer in, int length, long now) {
+            if (!Packet.isResponse(in, length) || (key != null && !Keys.verify(key, in, length))) {
+                errors++;
+                return;
+            }
+
+            int seq = Packet.seq(in);
+            int slot = seq & (RING - 1);
+            if (seq == 0 || sim.seqs[slot] != seq) {
+                late++;
+                return;
+            }
+            sim.seqs[slot] = 0;
+
+            if (Packet.isKiss(in)) {
+                kisses++;
+                return;
+            }
+
+            long rttNanos = now - sim.sentNanos[slot];
+            if (rttNanos > timeoutNanos) {
+                late++;
+                lost++;
+                return;
+            }
+
+            received++;
+            synchronized (this) {
+                rtt.record(rttNanos);
+            }
+        }
+
+        synchronized LogHistogram takeRtt() {
+            LogHistogram taken = rtt;
+            rtt = new LogHistogram(HISTO_BITS, HISTO_HIGHEST);
+            return taken;
+        }
+    }
+
+    // Every simulated client holds a socket. Fails before opening any of
+    // them when they cannot all fit under the process descriptor limit,
+    // instead of part way through with "Too many open files"
+    private void checkDescriptors() throws IOException {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (!(os instanceof UnixOperatingSystemMXBean)) {
+            return;
+        }
+        UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean) os;
+        long free = unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount();
+        long needed = clients + (long) loops.length * SELECTOR_DESCRIPTORS + SPARE_DESCRIPTORS;
+        if (needed > free) {
+            throw new IOException(String.format("%d simulated clients need about %d file descriptors but only %d "
+                    + "are free, raise the limit (ulimit -n) or lower --load", clients, needed, free));
+        }
+    }
+
+    public void start() throws IOException {
+        checkDescriptors();
+        for (Loop loop : loops) {
+            loop.open();
+        }
+        for (Loop loop : loops) {
+            loop.start();
+        }
+
+        Timer statsTimer = new Timer(true);
+        statsTimer.scheduleAtFixedRate(new TimerTask() {
+            private long lastSent = 0;
+
+            private long lastReceived = 0;
+
+            private long lastLost = 0;
+
+            @Override
+            public void run() {
+                long sent = 0;
+                long received = 0;
+                long lost = 0;
+                LogHistogram window = new LogHistogram(HISTO_BITS, HISTO_HIGHEST);
+                for (Loop loop : loops) {
+                    sent += loop.sent;
+                    received += loop.received;
+                    lost += loop.lost;
+                    window.merge(loop.takeRtt());
+                }
+                synchronized (LoadGenerator.this) {
+                    rttTotal.merge(window);
+                }
+
+                long windowSent = sent - lastSent;
+                System.out.format("%d clients\t %d req/s\t %d replies/s\t loss %.3f%%\t RTT p50/p99/p99.9 (us) %.1f / %.1f / %.1f\n",
+                        clients, windowSent / STATS_INTERVAL, (received - lastReceived) / STATS_INTERVAL,
+                        windowSent == 0 ? 0.0 : 100.0 * (lost - lastLost) / windowSent,
+                        window.valueAtPercentile(50) / 1e3, window.valueAtPercentile(99) / 1e3,
+                        window.valueAtPercentile(99.9) / 1e3);
+                lastSent = sent;
+                lastReceived = received;
+                lastLost = lost;
+            }
+        }, STATS_INTERVAL * 1000, STATS_INTERVAL * 1000);
+    }
+
+    // Stops sending, waits one timeout for the last replies and reports.
+    // Called from main and the shutdown hook, only the first call reports.
+    public void finish(long elapsedNanos) {
+        synchronized (finishLock) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            report(elapsedNanos);
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        sending = false;
+        for (Loop loop : loops) {
+            try {
+                loop.join();
+            }
+            catch (InterruptedException e) {
+                running = false;
+            }
+        }
+
+        long sent = 0;
+        long received = 0;
+        long lost = 0;
+        long late = 0;
+        long kisses = 0;
+        long errors = 0;
+        LogHistogram rtt;
+        synchronized (this) {
+            rtt = rttTotal;
+            rttTotal = new LogHistogram(HISTO_BITS, HISTO_HIGHEST);
+        }
+        for (Loop loop : loops) {
+            sent += loop.sent;
+            received += loop.received;
+            lost += loop.lost;
+            late += loop.late;
+            kisses += loop.kisses;
+            errors += loop.errors;
+            rtt.merge(loop.takeRtt());
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        String report = String.format("Load test against           : %s\n", target) +
+                        String.format("Simulated clients           : %d on %d loops\n", clients, loops.length) +
+                        String.format("Run time (s)                : %.1f\n", seconds) +
+                        String.format("Requests sent               : %d\n", sent) +
+                        String.format("Replies received            : %d\n", received) +
+                        String.format("Requests lost               : %d\n", lost) +
+                        String.format("Late replies                : %d\n", late) +
+                        String.format("Rate kisses                 : %d\n", kisses) +
+                        String.format("Socket errors               : %d\n", errors) +
+                        String.format("Request rate (req/s)        : %.1f\n", sent / seconds) +
+                        String.format("Reply rate (replies/s)      : %.1f\n", received / seconds) +
+                        String.format("Loss (%%)                    : %.3f\n", sent == 0 ? 0.0 : 100.0 * lost / sent) +
+                        String.format("RTT min/max (us)            : %.1f / %.1f\n",
+                                rtt.min() / 1e3, rtt.max() / 1e3) +
+                        String.format("RTT p50/p90/p99/p99.9 (us)  : %.1f / %.1f / %.1f / %.1f\n",
+                                rtt.valueAtPercentile(50) / 1e3, rtt.valueAtPercentile(90) / 1e3,
+                                rtt.valueAtPercentile(99) / 1e3, rtt.valueAtPercentile(99.9) / 1e3);
+
+        System.out.println(report);
+        try (FileWriter fw = new FileWriter(REPORT)) {
+            fw.write(report);
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package client;
+
+// Fixed memory histogram of non-negative long values in the style of
+// HdrHistogram. Values below 2^subBucketBits are counted exactly, above
+// that every power of two range is split into 2^(subBucketBits-1) equal
+// buckets, so the relative error stays below 2^-(subBucketBits-1).
+public class LogHistogram {
+    private final int subBucketBits;
+
+    private final int subBuckets;
+
+    private final long highest;
+
+    private final long[] counts;
+
+    private long total = 0;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max = 0;
+
+    public LogHistogram(int subBucketBits, long highest) {
+        this.subBucketBits = subBucketBits;
+        this.subBuckets = 1 << subBucketBits;
+        this.highest = Math.max(highest, subBuckets);
+        this.counts = new long[index(this.highest) + 1];
+    }
+
+    int index(long v) {
+        if (v < subBuckets) {
+            return (int) v;
+        }
+        int k = 63 - Long.numberOfLeadingZeros(v);
+        int shift = k - subBucketBits + 1;
+        return subBuckets + (k - subBucketBits) * (subBuckets / 2) + (int) ((v >>> shift) - subBuckets / 2);
+    }
+
+    long lowestAt(int idx) {
+        if (idx < subBuckets) {
+            return idx;
+        }
+        int j = idx - subBuckets;
+        int k = subBucketBits + j / (subBuckets / 2);
+        long sub = j % (subBuckets / 2) + subBuckets / 2;
+        return sub << (k - subBucketBits + 1);
+    }
+
+    long highestAt(int idx) {
+        if (idx < subBuckets) {
+            return idx;
+        }
+        int k = subBucketBits + (idx - subBuckets) / (subBuckets / 2);
+        return lowestAt(idx) + (1L << (k - subBucketBits + 1)) - 1;
+    }
+
+    // Values outside [0, highest] are clamped
+    public void record(long v) {
+        v = Math.max(0, Math.min(v, highest));
+        counts[index(v)]++;
+        total++;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+    }
+
+    public long total() {
+        return total;
+    }
+
+    public long min() {
+        return total == 0 ? 0 : min;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public int buckets() {
+        return counts.length;
+    }
+
+    public long countAt(int idx) {
+        return counts[idx];
+    }
+
+    // Value of the rank-th smallest recording, 1 based, reported as the
+    // highest value equivalent to it and never above the recorded maximum
+    public long valueAtRank(long rank) {
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestAt(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long valueAtPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        return valueAtRank(rank);
+    }
+
+    public void merge(LogHistogram other) {
+        if (other.subBucketBits != subBucketBits || other.highest != highest) {
+            throw new IllegalArgumentException("Histogram layouts differ");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        if (other.total > 0) {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+    }
+
+    // Compact text form: layout, min and max, then only the non-empty buckets
+    public String export() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(subBucketBits).append(' ').append(highest).append(' ')
+                .append(min()).append(' ').append(max);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                sb.append(' ').append(i).append(':').append(counts[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static LogHistogram parse(String line) {
+        String[] parts = line.trim().split(" ");
+        LogHistogram h = new LogHistogram(Integer.parseInt(parts[0]), Long.parseLong(parts[1]));
+        for (int i = 4; i < parts.length; i++) {
+            int colon = parts[i].indexOf(':');
+            long count = Long.parseLong(parts[i].substring(colon + 1));
+            h.counts[Integer.parseInt(parts[i].substring(0, colon))] += count;
+            h.total += count;
+        }
+        if (h.total > 0) {
+            h.min = Long.parseLong(parts[2]);
+            h.max = Long.parseLong(parts[3]);
+        }
+        return h;
+    }
+}
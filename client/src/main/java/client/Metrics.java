@@ -0,0 +1,135 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// Registry of live counters, gauges and summaries. Counter updates go to
+// striped LongAdders so hot paths never contend on a shared cache line;
+// readers sum them on demand for the text endpoint and the JMX bean.
+public class Metrics {
+    private final static double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public static class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        public void inc() {
+            adder.increment();
+        }
+
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    // A distribution exposed as a summary with quantiles, in the exposed
+    // unit. Backed by one of the histograms the owner already records into.
+    public interface Summary {
+        long count();
+
+        double sum();
+
+        // 0 when nothing has been recorded
+        double quantile(double q);
+    }
+
+    private final static class Entry {
+        final String name;
+
+        final String help;
+
+        final Object metric;
+
+        Entry(String name, String help, Object metric) {
+            this.name = name;
+            this.help = help;
+            this.metric = metric;
+        }
+    }
+
+    private final String prefix;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public Metrics(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public synchronized Counter counter(String name, String help) {
+        Counter counter = new Counter();
+        entries.add(new Entry(prefix + name, help, counter));
+        return counter;
+    }
+
+    public synchronized void gauge(String name, String help, DoubleSupplier value) {
+        entries.add(new Entry(prefix + name, help, value));
+    }
+
+    public synchronized void summary(String name, String help, Summary summary) {
+        entries.add(new Entry(prefix + name, help, summary));
+    }
+
+    // Prometheus text exposition format, version 0.0.4
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Entry e : entries) {
+            out.append("# HELP ").append(e.name).append(' ').append(e.help).append('\n');
+            if (e.metric instanceof Counter) {
+                out.append("# TYPE ").append(e.name).append(" counter\n");
+                out.append(e.name).append(' ').append(((Counter) e.metric).get()).append('\n');
+            }
+            else if (e.metric instanceof DoubleSupplier) {
+                out.append("# TYPE ").append(e.name).append(" gauge\n");
+                out.append(e.name).append(' ').append(((DoubleSupplier) e.metric).getAsDouble()).append('\n');
+            }
+            else {
+                Summary h = (Summary) e.metric;
+                out.append("# TYPE ").append(e.name).append(" summary\n");
+                for (double q : QUANTILES) {
+                    out.append(e.name).append("{quantile=\"").append(q).append("\"} ")
+                            .append(h.quantile(q)).append('\n');
+                }
+                out.append(e.name).append("_sum ").append(h.sum()).append('\n');
+                out.append(e.name).append("_count ").append(h.count()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    // Flat name to value view for JMX, summaries as count and quantiles
+    public synchronized Map<String, Object> values() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Entry e : entries) {
+            if (e.metric instanceof Counter) {
+                values.put(e.name, ((Counter) e.metric).get());
+            }
+            else if (e.metric instanceof DoubleSupplier) {
+                values.put(e.name, ((DoubleSupplier) e.metric).getAsDouble());
+            }
+            else {
+                Summary h = (Summary) e.metric;
+                values.put(e.name + "_count", h.count());
+                values.put(e.name + "_p50", h.quantile(QUANTILES[0]));
+                values.put(e.name + "_p90", h.quantile(QUANTILES[1]));
+                values.put(e.name + "_p99", h.quantile(QUANTILES[2]));
+                values.put(e.name + "_p999", h.quantile(QUANTILES[3]));
+            }
+        }
+        return values;
+    }
+
+    public synchronized Map<String, String> descriptions() {
+        Map<String, String> help = new LinkedHashMap<>();
+        for (Entry e : entries) {
+            help.put(e.name, e.help);
+        }
+        return help;
+    }
+}
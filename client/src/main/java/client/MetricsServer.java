@@ -0,0 +1,131 @@
+package client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpServer;
+
+// Publishes a Metrics registry as a read-only JMX bean and, when a port is
+// given, as Prometheus text on http://127.0.0.1:<port>/metrics
+public class MetricsServer implements DynamicMBean {
+    private final Metrics metrics;
+
+    private final MBeanInfo info;
+
+    private HttpServer http;
+
+    private ObjectName name;
+
+    public MetricsServer(Metrics metrics) {
+        this.metrics = metrics;
+
+        Map<String, String> help = metrics.descriptions();
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Object> e : metrics.values().entrySet()) {
+            String description = help.getOrDefault(e.getKey(), e.getKey());
+            String type = e.getValue() instanceof Long ? "long" : "double";
+            attributes.add(new MBeanAttributeInfo(e.getKey(), type, description, true, false, false));
+        }
+        this.info = new MBeanInfo(getClass().getName(), "Live metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    public void registerMBean(String objectName) {
+        try {
+            name = new ObjectName(objectName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        }
+        catch (JMException e) {
+            System.out.println("ERROR: Cannot register metrics bean. " + e.getMessage());
+            name = null;
+        }
+    }
+
+    // Serves scrapes from one daemon thread, only on the loopback interface
+    public void startHttp(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+    }
+
+    // Stops serving and unregisters the bean, so another session in the
+    // same JVM can register under the same name
+    public void stop() {
+        if (http != null) {
+            http.stop(0);
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch (JMException e) {
+                System.out.println("ERROR: Cannot unregister metrics bean. " + e.getMessage());
+            }
+            name = null;
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = metrics.values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> values = metrics.values();
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            if (values.containsKey(name)) {
+                list.add(new Attribute(name, values.get(name)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+}
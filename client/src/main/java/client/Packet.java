@@ -0,0 +1,115 @@
+package client;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+public class Packet {
+    public final static int SIZE = 48;
+
+    public final static byte VERSION = 1;
+
+    public final static byte MODE_REQUEST = 1;
+
+    public final static byte MODE_RESPONSE = 2;
+
+    // Unsolicited multicast time packet, only seq and transmit are set
+    public final static byte MODE_BROADCAST = 5;
+
+    // Servers answer over-limit clients with stratum 0 and a kiss code
+    public final static byte STRATUM_KISS = 0;
+
+    // Servers that are not synchronized themselves, their time is not used
+    public final static int STRATUM_UNSYNCHRONIZED = 16;
+
+    // Field offsets, all values big-endian
+    public final static int VERSION_OFFSET = 0;
+
+    public final static int MODE_OFFSET = 1;
+
+    public final static int STRATUM_OFFSET = 2;
+
+    public final static int FLAGS_OFFSET = 3;
+
+    public final static int SEQ_OFFSET = 4;
+
+    // Root delay and dispersion in microseconds
+    public final static int ROOT_DELAY_OFFSET = 8;
+
+    public final static int ROOT_DISPERSION_OFFSET = 12;
+
+    // Timestamps in nanoseconds since epoch
+    public final static int ORIGIN_OFFSET = 16;
+
+    public final static int RECEIVE_OFFSET = 24;
+
+    public final static int TRANSMIT_OFFSET = 32;
+
+    public final static int REFERENCE_OFFSET = 40;
+
+    public static long nowNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    public static void encodeRequest(ByteBuffer buf, int seq, long originNanos) {
+        buf.clear();
+        buf.put(VERSION_OFFSET, VERSION);
+        buf.put(MODE_OFFSET, MODE_REQUEST);
+        buf.put(STRATUM_OFFSET, (byte) 0);
+        buf.put(FLAGS_OFFSET, (byte) 0);
+        buf.putInt(SEQ_OFFSET, seq);
+        buf.putInt(ROOT_DELAY_OFFSET, 0);
+        buf.putInt(ROOT_DISPERSION_OFFSET, 0);
+        buf.putLong(ORIGIN_OFFSET, originNanos);
+        buf.putLong(RECEIVE_OFFSET, 0L);
+        buf.putLong(TRANSMIT_OFFSET, 0L);
+        buf.putLong(REFERENCE_OFFSET, 0L);
+        buf.limit(SIZE);
+    }
+
+    public static boolean isResponse(ByteBuffer buf, int length) {
+        return length >= SIZE
+                && buf.get(VERSION_OFFSET) == VERSION
+                && buf.get(MODE_OFFSET) == MODE_RESPONSE;
+    }
+
+    public static boolean isBroadcast(ByteBuffer buf, int length) {
+        return length >= SIZE
+                && buf.get(VERSION_OFFSET) == VERSION
+                && buf.get(MODE_OFFSET) == MODE_BROADCAST;
+    }
+
+    // Kiss-o'-death, the server asks to be polled less often
+    public static boolean isKiss(ByteBuffer buf) {
+        return buf.get(STRATUM_OFFSET) == STRATUM_KISS;
+    }
+
+    public static int stratum(ByteBuffer buf) {
+        return buf.get(STRATUM_OFFSET) & 0xff;
+    }
+
+    // Server's own distance to its primary source, in seconds
+    public static double rootDelay(ByteBuffer buf) {
+        return (buf.getInt(ROOT_DELAY_OFFSET) & 0xffffffffL) / 1e6;
+    }
+
+    public static double rootDispersion(ByteBuffer buf) {
+        return (buf.getInt(ROOT_DISPERSION_OFFSET) & 0xffffffffL) / 1e6;
+    }
+
+    public static int seq(ByteBuffer buf) {
+        return buf.getInt(SEQ_OFFSET);
+    }
+
+    public static long origin(ByteBuffer buf) {
+        return buf.getLong(ORIGIN_OFFSET);
+    }
+
+    public static long receive(ByteBuffer buf) {
+        return buf.getLong(RECEIVE_OFFSET);
+    }
+
+    public static long transmit(ByteBuffer buf) {
+        return buf.getLong(TRANSMIT_OFFSET);
+    }
+}
@@ -0,0 +1,139 @@
+package client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+// One upstream server: its own sequence namespace, in-flight table and
+// clock filter. The top 8 bits of every seq sent to it carry its id.
+public class Peer {
+    public final static int MAX_PEERS = 256;
+
+    private final static int COUNTER_BITS = 24;
+
+    private final static int COUNTER_MASK = (1 << COUNTER_BITS) - 1;
+
+    // A rate kiss holds off polling for at least a second, doubling with
+    // every further kiss until a normal reply arrives
+    private final static long MIN_HOLD_NANOS = 1_000_000_000L;
+
+    private final static int MAX_HOLD_SHIFT = 6;
+
+    public final int id;
+
+    public final InetAddress address;
+
+    public final int port;
+
+    public final InetSocketAddress socketAddress;
+
+    public final InFlightTable inFlight;
+
+    public final ClockFilter filter;
+
+    // Sender thread only
+    private int counter = 0;
+
+    public long sent = 0;
+
+    public long held = 0;
+
+    // Receive thread only
+    public long received = 0;
+
+    public long selected = 0;
+
+    public long falseticker = 0;
+
+    public long kisses = 0;
+
+    public long unsynchronized = 0;
+
+    // Multicast packets that came before the first unicast sample
+    public long uncalibrated = 0;
+
+    // Advertised in the last usable reply, a relay's view of its own source
+    public int stratum = 0;
+
+    public double rootDelay = 0;
+
+    public double rootDispersion = 0;
+
+    private int kissStreak = 0;
+
+    private volatile long holdUntilNanos = 0;
+
+    public final RunningStats rttStats;
+
+    public Peer(int id, InetAddress address, int port, InFlightTable inFlight, ClockFilter filter,
+                double ewmaWeight) {
+        this.id = id;
+        this.address = address;
+        this.port = port;
+        this.socketAddress = new InetSocketAddress(address, port);
+        this.inFlight = inFlight;
+        this.filter = filter;
+        this.rttStats = new RunningStats(ewmaWeight);
+    }
+
+    public int nextSeq() {
+        counter = (counter + 1) & COUNTER_MASK;
+        if (counter == 0) {
+            counter = 1;
+        }
+        return (id << COUNTER_BITS) | counter;
+    }
+
+    // Receive thread, on a rate kiss from this server
+    public void kiss(long nowNano, long intervalNanos) {
+        kisses++;
+        long hold = Math.max(MIN_HOLD_NANOS, intervalNanos) << kissStreak;
+        kissStreak = Math.min(kissStreak + 1, MAX_HOLD_SHIFT);
+        holdUntilNanos = nowNano + hold;
+    }
+
+    // Receive thread, on a normal reply
+    public void answered() {
+        kissStreak = 0;
+    }
+
+    public boolean isHeld(long nowNano) {
+        return nowNano - holdUntilNanos < 0;
+    }
+
+    // Seq in this peer's namespace for a counter chosen elsewhere, such as
+    // the sequence number of a multicast packet
+    public int seqOf(int count) {
+        return (id << COUNTER_BITS) | (count & COUNTER_MASK);
+    }
+
+    public static int peerId(int seq) {
+        return seq >>> COUNTER_BITS;
+    }
+
+    public static int counter(int seq) {
+        return seq & COUNTER_MASK;
+    }
+
+    // Printable seq, prefixed with the peer id when it is not the first peer
+    public static String label(int seq) {
+        int id = peerId(seq);
+        return id == 0 ? String.format("%04d", counter(seq)) : String.format("%d/%04d", id, counter(seq));
+    }
+
+    // Receive thread, on a reply with usable timestamps
+    public void reference(int stratum, double rootDelay, double rootDispersion) {
+        this.stratum = stratum;
+        this.rootDelay = rootDelay;
+        this.rootDispersion = rootDispersion;
+    }
+
+    // Root distance of the selected sample, half the delay plus dispersion
+    // and jitter, on top of the server's own distance to its source
+    public double distance(long nowNanos) {
+        return (rootDelay + filter.delay()) / 2 + rootDispersion + filter.dispersion(nowNanos) + filter.jitter();
+    }
+
+    public String toString() {
+        return address.getHostAddress() + ":" + port;
+    }
+}
@@ -0,0 +1,161 @@
+package client;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Sends a burst of probes every poll interval from a dedicated thread.
+// Deadlines are absolute System.nanoTime values so the rate does not drift.
+// In adaptive mode the interval is 2^poll seconds and poll moves between
+// minPoll and maxPoll the way NTP does: while offsets stay within a few
+// jitters the interval grows, when they do not it shrinks.
+public class PollScheduler extends Thread {
+    // Finish the wait by spinning once the deadline is this close
+    private final static long SPIN_NANOS = 50_000L;
+
+    private final static int POLL_LIMIT = 30;
+
+    private final static double POLL_GATE = 4;
+
+    private final static long STARTUP_NANOS = 2_000_000_000L;
+
+    private final static int STARTUP_POLLS = 8;
+
+    private final Client client;
+
+    private final long fixedIntervalNanos;
+
+    private final int burst;
+
+    private final boolean spin;
+
+    private final boolean adaptive;
+
+    private final int minPoll;
+
+    private final int maxPoll;
+
+    private volatile int poll;
+
+    // With startup polling, polls come every STARTUP_NANOS until
+    // Client.converged() or STARTUP_POLLS polls, like NTP's iburst
+    private boolean starting;
+
+    private volatile int startupPolls = 0;
+
+    // Only touched by the receive thread through onSample
+    private int pollCounter = 0;
+
+    private volatile boolean running = true;
+
+    public PollScheduler(Client client, double intervalMs, int burst, boolean spin,
+                         boolean adaptive, int minPoll, int maxPoll, boolean startup) {
+        super("poll-scheduler");
+        setDaemon(true);
+        this.client = client;
+        this.fixedIntervalNanos = Math.max(1L, Math.round(intervalMs * 1e6));
+        this.burst = burst;
+        this.spin = spin;
+        this.adaptive = adaptive;
+        this.minPoll = minPoll;
+        this.maxPoll = maxPoll;
+        this.poll = minPoll;
+        this.starting = startup;
+    }
+
+    public long intervalNanos() {
+        if (!adaptive) {
+            return fixedIntervalNanos;
+        }
+        return Math.round(Math.scalb(1e9, poll));
+    }
+
+    public int getPoll() {
+        return poll;
+    }
+
+    // Resumes the adaptive interval where an earlier run left it
+    public void restorePoll(int saved) {
+        poll = Math.max(minPoll, Math.min(maxPoll, saved));
+    }
+
+    public int getStartupPolls() {
+        return startupPolls;
+    }
+
+    // Feeds the filtered offset and its jitter into the adaptive poll interval
+    public void onSample(double theta, double jitter) {
+        if (!adaptive) {
+            return;
+        }
+
+        if (Math.abs(theta) < POLL_GATE * jitter) {
+            pollCounter += poll > 0 ? poll : 1;
+            if (pollCounter > POLL_LIMIT) {
+                pollCounter = POLL_LIMIT;
+                if (poll < maxPoll) {
+                    pollCounter = 0;
+                    poll++;
+                }
+            }
+        }
+        else {
+            pollCounter -= 2 * (poll > 0 ? poll : 1);
+            if (pollCounter < -POLL_LIMIT) {
+                pollCounter = -POLL_LIMIT;
+                if (poll > minPoll) {
+                    pollCounter = 0;
+                    poll--;
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(this);
+    }
+
+    public void run() {
+        long next = System.nanoTime();
+
+        while (running) {
+            waitUntil(next);
+            if (!running) {
+                break;
+            }
+
+            for (int i = 0; i < burst; i++) {
+                client.send();
+            }
+
+            long interval = intervalNanos();
+            if (starting && (startupPolls >= STARTUP_POLLS || client.converged())) {
+                starting = false;
+            }
+            if (starting) {
+                startupPolls++;
+                interval = Math.min(interval, STARTUP_NANOS);
+            }
+            next += interval;
+            long now = System.nanoTime();
+            if (next < now) {
+                // Fell behind, skip the missed polls instead of bursting to catch up
+                next = now;
+            }
+        }
+    }
+
+    private void waitUntil(long deadline) {
+        long remaining;
+        while (running && (remaining = deadline - System.nanoTime()) > 0) {
+            if (!spin) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            else if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+            }
+            else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded lock-free queue for many producers and a single consumer.
+// Each slot carries a sequence number telling producers and the consumer
+// whose turn it is, so offer and poll never block.
+public class RecordQueue<T> {
+    private final Object[] records;
+
+    private final AtomicLongArray sequence;
+
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    // Only touched by the consumer thread
+    private long head = 0;
+
+    public RecordQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.records = new Object[size];
+        this.sequence = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    // Returns false when the queue is full
+    public boolean offer(T record) {
+        long pos = tail.get();
+        while (true) {
+            long diff = sequence.get((int) (pos & mask)) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            }
+            else if (diff < 0) {
+                return false;
+            }
+            else {
+                pos = tail.get();
+            }
+        }
+
+        int idx = (int) (pos & mask);
+        records[idx] = record;
+        // The volatile write publishes the record to the consumer
+        sequence.set(idx, pos + 1);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        int idx = (int) (head & mask);
+        if (sequence.get(idx) != head + 1) {
+            return null;
+        }
+
+        T record = (T) records[idx];
+        records[idx] = null;
+        sequence.set(idx, head + mask + 1);
+        head++;
+        return record;
+    }
+}
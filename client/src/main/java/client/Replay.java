@@ -0,0 +1,272 @@
+package client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.List;
+
+// Offline replay of a sample journal through the same clock filter,
+// selection and discipline code as a live run, so the math can be changed
+// or retuned and compared without repeating the experiment.
+//   java -cp build/classes/java/main client.Replay <journal-dir> [options]
+public class Replay {
+    public final static String USAGE = "Usage: java client.Replay <journal-dir> [options]\n" +
+            "  --filter-size=N       Samples in the minimum RTT filter window\n" +
+            "  --filter-age-ms=N     Also expire filter samples older than N ms\n" +
+            "  --time-constant=S     Clock discipline time constant in seconds\n" +
+            "  --samples             Print every replayed sample";
+
+    private final static int HISTO_BITS = 7;
+
+    private final static long HISTO_HIGHEST = 1L << 40;
+
+    private final static double EWMA_WEIGHT = 0.125;
+
+    // Time stands still between samples, it is the client receive time of
+    // the sample being replayed
+    static class ReplayClock extends SyncClock {
+        long now = 0;
+
+        @Override
+        protected long ticks() {
+            return now;
+        }
+
+        @Override
+        protected long localNanos() {
+            return now;
+        }
+    }
+
+    private final int filterSize;
+
+    private final long filterAgeNanos;
+
+    private final boolean printSamples;
+
+    private final ReplayClock clock = new ReplayClock();
+
+    private final ClockDiscipline discipline;
+
+    private final Selector selector = new Selector(Peer.MAX_PEERS);
+
+    private List<String> servers;
+
+    private Peer[] peers;
+
+    private long records = 0;
+
+    private long kisses = 0;
+
+    private long late = 0;
+
+    private long skipped = 0;
+
+    private long noMajority = 0;
+
+    // Replies stamped per source, indexed by Sample.STAMP_*
+    private final long[] stamps = new long[Sample.STAMP_NAMES.length];
+
+    private final RunningStats rttStats = new RunningStats(EWMA_WEIGHT);
+
+    private final RunningStats thetaStats = new RunningStats(EWMA_WEIGHT);
+
+    private final RunningStats driftStats = new RunningStats(EWMA_WEIGHT);
+
+    private final LogHistogram rttHisto = new LogHistogram(HISTO_BITS, HISTO_HIGHEST);
+
+    private final SignedHistogram thetaHisto = new SignedHistogram(HISTO_BITS, HISTO_HIGHEST);
+
+    private final SignedHistogram smoothedHisto = new SignedHistogram(HISTO_BITS, HISTO_HIGHEST);
+
+    public Replay(int filterSize, long filterAgeNanos, double timeConstant, boolean printSamples) {
+        this.filterSize = filterSize;
+        this.filterAgeNanos = filterAgeNanos;
+        this.printSamples = printSamples;
+        this.discipline = new ClockDiscipline(clock, timeConstant);
+    }
+
+    // Peers come from the header of the first segment, the addresses are
+    // only labels so no lookups are made
+    private void createPeers(List<String> servers) throws IOException {
+        this.servers = servers;
+        peers = new Peer[servers.size()];
+        for (int i = 0; i < peers.length; i++) {
+            InetAddress label = InetAddress.getByAddress(servers.get(i), new byte[4]);
+            peers[i] = new Peer(i, label, 0, null, new ClockFilter(filterSize, filterAgeNanos), EWMA_WEIGHT);
+        }
+    }
+
+    private void record(List<String> segmentServers, ByteBuffer buf, int at) {
+        records++;
+        if (peers == null) {
+            try {
+                createPeers(segmentServers);
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        int flags = buf.getShort(at + Journal.FLAGS_OFFSET);
+        if ((flags & Journal.FLAG_KERNEL_STAMP) != 0) {
+            stamps[Sample.STAMP_KERNEL]++;
+        }
+        else if ((flags & Journal.FLAG_BUSY_STAMP) != 0) {
+            stamps[Sample.STAMP_BUSY]++;
+        }
+        else {
+            stamps[Sample.STAMP_USER]++;
+        }
+        if ((flags & Journal.FLAG_KISS) != 0) {
+            kisses++;
+            return;
+        }
+        if ((flags & Journal.FLAG_LATE) != 0) {
+            late++;
+            return;
+        }
+        if ((flags & Journal.FLAG_UNSYNCHRONIZED) != 0) {
+            skipped++;
+            return;
+        }
+
+        int id = buf.getShort(at + Journal.PEER_OFFSET);
+        if (id < 0 || id >= peers.length) {
+            skipped++;
+            return;
+        }
+
+        long t1 = buf.getLong(at + Journal.T1_OFFSET);
+        long t2 = buf.getLong(at + Journal.T2_OFFSET);
+        long t3 = buf.getLong(at + Journal.T3_OFFSET);
+        long t4 = buf.getLong(at + Journal.T4_OFFSET);
+        process(peers[id], buf.getInt(at + Journal.SEQ_OFFSET), t1, t2, t3, t4);
+    }
+
+    // Mirrors ClientReceiver.processTime
+    private void process(Peer peer, int seq, long t1, long t2, long t3, long t4) {
+        double rtt = ((t2 - t1) + (t4 - t3)) / 1e9;
+        double theta = ((t2 - t1) - (t4 - t3)) / 2e9;
+        rttStats.add(rtt);
+        thetaStats.add(theta);
+        peer.received++;
+        peer.rttStats.add(rtt);
+
+        peer.filter.add(rtt, theta, t4);
+        double smoothedTheta = selector.select(peers, t4);
+        if (!selector.hadMajority()) {
+            noMajority++;
+        }
+
+        clock.now = t4;
+        discipline.update(smoothedTheta);
+        double drift = clock.frequency();
+        driftStats.add(drift);
+
+        rttHisto.record(t2 - t1 + t4 - t3);
+        thetaHisto.record((t2 - t1 - t4 + t3) / 2);
+        smoothedHisto.record(Math.round(smoothedTheta * 1e9));
+
+        if (printSamples) {
+            System.out.format("%-10s %10.6f %10.6f %10.6f %12.9f\n",
+                    Peer.label(seq), rtt, theta, smoothedTheta, drift);
+        }
+    }
+
+    public void printReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Journal records             : %d\n", records))
+              .append(String.format("Samples replayed            : %d\n", rttStats.count()))
+              .append(String.format("Late replies / kisses       : %d / %d\n", late, kisses))
+              .append(String.format("Unknown or unsynchronized   : %d\n", skipped))
+              .append(String.format("Stamps user/busy/kernel     : %d / %d / %d\n",
+                      stamps[Sample.STAMP_USER], stamps[Sample.STAMP_BUSY], stamps[Sample.STAMP_KERNEL]))
+              .append(String.format("Average round trip time (s) : %.6f\n", rttStats.mean()))
+              .append(String.format("Average theta (s)           : %.6f\n", thetaStats.mean()))
+              .append(String.format("Average drift rate (s/s)    : %.9f\n", driftStats.mean()))
+              .append(String.format("RTT min/max/stddev (s)      : %.6f / %.6f / %.6f\n",
+                      rttStats.min(), rttStats.max(), rttStats.stddev()))
+              .append(String.format("Theta min/max/stddev (s)    : %.6f / %.6f / %.6f\n",
+                      thetaStats.min(), thetaStats.max(), thetaStats.stddev()))
+              .append(String.format("RTT p50/p99/p99.9 (s)       : %.6f / %.6f / %.6f\n",
+                      rttHisto.valueAtPercentile(50) / 1e9, rttHisto.valueAtPercentile(99) / 1e9,
+                      rttHisto.valueAtPercentile(99.9) / 1e9))
+              .append(String.format("Theta p50/p99/p99.9 (s)     : %.6f / %.6f / %.6f\n",
+                      thetaHisto.valueAtPercentile(50) / 1e9, thetaHisto.valueAtPercentile(99) / 1e9,
+                      thetaHisto.valueAtPercentile(99.9) / 1e9))
+              .append(String.format("Combined p50/p99/p99.9 (s)  : %.6f / %.6f / %.6f\n",
+                      smoothedHisto.valueAtPercentile(50) / 1e9, smoothedHisto.valueAtPercentile(99) / 1e9,
+                      smoothedHisto.valueAtPercentile(99.9) / 1e9))
+              .append(String.format("Selections without majority: %d\n", noMajority))
+              .append(String.format("Frequency correction (ppm)  : %.3f\n", discipline.frequencyPpm()))
+              .append(String.format("Clock steps                 : %d\n", discipline.getSteps()));
+
+        if (peers != null) {
+            report.append("Servers: \n");
+            for (Peer peer : peers) {
+                report.append(String.format("[%d] %s received %d selected %d falseticker %d avg RTT %.6f\n",
+                        peer.id, servers.get(peer.id), peer.received, peer.selected, peer.falseticker,
+                        peer.rttStats.mean()));
+            }
+        }
+        System.out.print(report);
+    }
+
+    public static void main(String[] args) {
+        String dir = null;
+        Config defaults = new Config();
+        int filterSize = defaults.filterSize;
+        long filterAgeMs = defaults.filterAgeMs;
+        double timeConstant = defaults.timeConstant;
+        boolean printSamples = false;
+
+        try {
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    if (dir != null) {
+                        throw new IllegalArgumentException("Expected a single journal directory");
+                    }
+                    dir = arg;
+                }
+                else if (arg.startsWith("--filter-size=")) {
+                    filterSize = Integer.parseInt(arg.substring("--filter-size=".length()));
+                }
+                else if (arg.startsWith("--filter-age-ms=")) {
+                    filterAgeMs = Long.parseLong(arg.substring("--filter-age-ms=".length()));
+                }
+                else if (arg.startsWith("--time-constant=")) {
+                    timeConstant = Double.parseDouble(arg.substring("--time-constant=".length()));
+                }
+                else if (arg.equals("--samples")) {
+                    printSamples = true;
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (dir == null) {
+                throw new IllegalArgumentException("Expected <journal-dir>");
+            }
+            if (filterSize < 1 || !(timeConstant > 0)) {
+                throw new IllegalArgumentException("--filter-size and --time-constant must be positive");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        Replay replay = new Replay(filterSize, filterAgeMs * 1_000_000L, timeConstant, printSamples);
+        try {
+            Journal.read(Paths.get(dir), replay::record);
+        }
+        catch (IOException | IllegalStateException e) {
+            System.out.println("ERROR: Cannot read journal " + dir + ". " + e.getMessage());
+            System.exit(1);
+        }
+        replay.printReport();
+    }
+}
@@ -0,0 +1,69 @@
+package client;
+
+// Streaming mean, variance (Welford), min, max and an exponentially weighted
+// average in O(1) memory. Updated from a single thread.
+public class RunningStats {
+    private final double ewmaWeight;
+
+    private long count = 0;
+
+    private double mean = 0;
+
+    private double m2 = 0;
+
+    private double min = Double.NaN;
+
+    private double max = Double.NaN;
+
+    private double ewma = Double.NaN;
+
+    public RunningStats(double ewmaWeight) {
+        this.ewmaWeight = ewmaWeight;
+    }
+
+    public void add(double x) {
+        count++;
+        double delta = x - mean;
+        mean += delta / count;
+        m2 += delta * (x - mean);
+
+        if (count == 1) {
+            min = x;
+            max = x;
+            ewma = x;
+        }
+        else {
+            min = Math.min(min, x);
+            max = Math.max(max, x);
+            ewma += ewmaWeight * (x - ewma);
+        }
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double mean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    public double variance() {
+        return count < 2 ? 0 : m2 / (count - 1);
+    }
+
+    public double stddev() {
+        return Math.sqrt(variance());
+    }
+
+    public double min() {
+        return min;
+    }
+
+    public double max() {
+        return max;
+    }
+
+    public double ewma() {
+        return ewma;
+    }
+}
@@ -0,0 +1,53 @@
+package client;
+
+// One processed exchange, queued from the receive thread to the log writer
+public class Sample {
+    // Where t0 came from: userspace after a blocking receive, userspace
+    // from the busy-polling receiver, or the kernel (SO_TIMESTAMPNS)
+    public final static int STAMP_USER = 0;
+
+    public final static int STAMP_BUSY = 1;
+
+    public final static int STAMP_KERNEL = 2;
+
+    public final static String[] STAMP_NAMES = {"user", "busy", "kernel"};
+
+    public final int seq;
+
+    public final int peer;
+
+    public final double rtt;
+
+    public final double theta;
+
+    public final double smoothedTheta;
+
+    public final double drift;
+
+    public final long currNanos;
+
+    public final long correctedNanos;
+
+    // Reply for a request that was already dropped, only seq is meaningful
+    public final boolean late;
+
+    public final int stamp;
+
+    public Sample(int seq, int peer, double rtt, double theta, double smoothedTheta, double drift,
+                  long currNanos, long correctedNanos, boolean late, int stamp) {
+        this.seq = seq;
+        this.peer = peer;
+        this.rtt = rtt;
+        this.theta = theta;
+        this.smoothedTheta = smoothedTheta;
+        this.drift = drift;
+        this.currNanos = currNanos;
+        this.correctedNanos = correctedNanos;
+        this.late = late;
+        this.stamp = stamp;
+    }
+
+    public static Sample late(int seq, int stamp) {
+        return new Sample(seq, Peer.peerId(seq), 0, 0, 0, 0, 0, 0, true, stamp);
+    }
+}
@@ -0,0 +1,192 @@
+package client;
+
+// Combines the filtered offsets of several peers the way NTP does. The
+// intersection step (Marzullo) finds the smallest interval shared by a
+// majority of the [offset - distance, offset + distance] intervals, and
+// peers outside it are falsetickers. Clustering then drops the survivor
+// furthest from the rest while that improves on the peers' own jitter.
+// The result is the survivors' offsets averaged with weight 1/distance.
+public class Selector {
+    private final static int MIN_CLUSTER = 3;
+
+    private final double[] offsets;
+
+    private final double[] distances;
+
+    private final double[] jitters;
+
+    private final int[] ids;
+
+    private final boolean[] survivor;
+
+    // Endpoints encoded as value and type (-1 low, +1 high) sorted by value
+    private final double[] endValues;
+
+    private final int[] endTypes;
+
+    private final int[] order;
+
+    private int survivors = 0;
+
+    private boolean majority = false;
+
+    public Selector(int maxPeers) {
+        this.offsets = new double[maxPeers];
+        this.distances = new double[maxPeers];
+        this.jitters = new double[maxPeers];
+        this.ids = new int[maxPeers];
+        this.survivor = new boolean[maxPeers];
+        this.endValues = new double[maxPeers * 2];
+        this.endTypes = new int[maxPeers * 2];
+        this.order = new int[maxPeers * 2];
+    }
+
+    // Returns the combined offset, or NaN when no peer has samples yet
+    public double select(Peer[] peers, long nowNanos) {
+        int n = 0;
+        for (Peer peer : peers) {
+            if (peer.filter.isEmpty()) {
+                continue;
+            }
+            offsets[n] = peer.filter.offset();
+            distances[n] = peer.distance(nowNanos);
+            jitters[n] = peer.filter.jitter();
+            ids[n] = peer.id;
+            n++;
+        }
+        if (n == 0) {
+            return Double.NaN;
+        }
+
+        intersect(n);
+        cluster(n);
+
+        double sum = 0;
+        double weights = 0;
+        for (int i = 0; i < n; i++) {
+            Peer peer = peers[ids[i]];
+            if (!survivor[i]) {
+                peer.falseticker++;
+                continue;
+            }
+            peer.selected++;
+            double w = 1 / Math.max(distances[i], 1e-9);
+            sum += w * offsets[i];
+            weights += w;
+        }
+        return sum / weights;
+    }
+
+    // False when the last selection found no majority and fell back to the
+    // single peer with the smallest distance
+    public boolean hadMajority() {
+        return majority;
+    }
+
+    private void intersect(int n) {
+        for (int i = 0; i < n; i++) {
+            endValues[2 * i] = offsets[i] - distances[i];
+            endTypes[2 * i] = -1;
+            endValues[2 * i + 1] = offsets[i] + distances[i];
+            endTypes[2 * i + 1] = 1;
+        }
+        // Insertion sort, there are only a handful of peers
+        for (int i = 0; i < 2 * n; i++) {
+            int e = i;
+            int j = i - 1;
+            while (j >= 0 && before(e, order[j])) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = e;
+        }
+
+        double low = 0;
+        double high = 0;
+        majority = false;
+        for (int allow = 0; 2 * allow < n; allow++) {
+            int count = 0;
+            low = Double.NaN;
+            for (int i = 0; i < 2 * n; i++) {
+                count -= endTypes[order[i]];
+                if (count >= n - allow) {
+                    low = endValues[order[i]];
+                    break;
+                }
+            }
+            count = 0;
+            high = Double.NaN;
+            for (int i = 2 * n - 1; i >= 0; i--) {
+                count += endTypes[order[i]];
+                if (count >= n - allow) {
+                    high = endValues[order[i]];
+                    break;
+                }
+            }
+            if (!Double.isNaN(low) && !Double.isNaN(high) && low <= high) {
+                majority = true;
+                break;
+            }
+        }
+
+        survivors = 0;
+        if (!majority) {
+            int best = 0;
+            for (int i = 1; i < n; i++) {
+                if (distances[i] < distances[best]) {
+                    best = i;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                survivor[i] = i == best;
+            }
+            survivors = 1;
+            return;
+        }
+
+        for (int i = 0; i < n; i++) {
+            survivor[i] = offsets[i] >= low && offsets[i] <= high;
+            if (survivor[i]) {
+                survivors++;
+            }
+        }
+    }
+
+    // Lows sort before highs at the same value so touching intervals overlap
+    private boolean before(int a, int b) {
+        int c = Double.compare(endValues[a], endValues[b]);
+        return c != 0 ? c < 0 : endTypes[a] < endTypes[b];
+    }
+
+    private void cluster(int n) {
+        while (survivors > MIN_CLUSTER) {
+            int worst = -1;
+            double worstJitter = -1;
+            double minPeerJitter = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                if (!survivor[i]) {
+                    continue;
+                }
+                minPeerJitter = Math.min(minPeerJitter, jitters[i]);
+
+                double sq = 0;
+                for (int j = 0; j < n; j++) {
+                    if (survivor[j]) {
+                        double d = offsets[j] - offsets[i];
+                        sq += d * d;
+                    }
+                }
+                double selectionJitter = Math.sqrt(sq / (survivors - 1));
+                if (selectionJitter > worstJitter) {
+                    worstJitter = selectionJitter;
+                    worst = i;
+                }
+            }
+            if (worstJitter <= minPeerJitter) {
+                return;
+            }
+            survivor[worst] = false;
+            survivors--;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package client;
+
+// LogHistogram for values of either sign, such as offsets and drift rates
+public class SignedHistogram {
+    private final LogHistogram negative;
+
+    private final LogHistogram positive;
+
+    public SignedHistogram(int subBucketBits, long highest) {
+        this(new LogHistogram(subBucketBits, highest), new LogHistogram(subBucketBits, highest));
+    }
+
+    private SignedHistogram(LogHistogram negative, LogHistogram positive) {
+        this.negative = negative;
+        this.positive = positive;
+    }
+
+    public void record(long v) {
+        if (v < 0) {
+            negative.record(-v);
+        }
+        else {
+            positive.record(v);
+        }
+    }
+
+    public long total() {
+        return negative.total() + positive.total();
+    }
+
+    public long valueAtPercentile(double percentile) {
+        long total = total();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        if (rank <= negative.total()) {
+            // Negative values are stored by magnitude, so rank from the other end
+            return -negative.valueAtRank(negative.total() - rank + 1);
+        }
+        return positive.valueAtRank(rank - negative.total());
+    }
+
+    public void merge(SignedHistogram other) {
+        negative.merge(other.negative);
+        positive.merge(other.positive);
+    }
+
+    // One line per non-empty bucket in increasing value order, labelled with
+    // the lower edge of the bucket divided by scale
+    public void appendBuckets(StringBuilder sb, double scale, String format, int maxStars) {
+        long peak = 1;
+        for (int i = 0; i < negative.buckets(); i++) {
+            peak = Math.max(peak, Math.max(negative.countAt(i), positive.countAt(i)));
+        }
+
+        for (int i = negative.buckets() - 1; i >= 0; i--) {
+            long count = negative.countAt(i);
+            if (count > 0) {
+                appendBucket(sb, -negative.highestAt(i) / scale, count, peak, format, maxStars);
+            }
+        }
+        for (int i = 0; i < positive.buckets(); i++) {
+            long count = positive.countAt(i);
+            if (count > 0) {
+                appendBucket(sb, positive.lowestAt(i) / scale, count, peak, format, maxStars);
+            }
+        }
+    }
+
+    private static void appendBucket(StringBuilder sb, double value, long count, long peak,
+                                     String format, int maxStars) {
+        sb.append(String.format(format, value));
+        if (maxStars > 0) {
+            int stars = (int) Math.max(1, count * maxStars / peak);
+            for (int i = 0; i < stars; i++) {
+                sb.append('*');
+            }
+            sb.append(' ');
+        }
+        sb.append(count).append('\n');
+    }
+
+    public String export() {
+        return negative.export() + "\n" + positive.export();
+    }
+
+    public static SignedHistogram parse(String negativeLine, String positiveLine) {
+        return new SignedHistogram(LogHistogram.parse(negativeLine), LogHistogram.parse(positiveLine));
+    }
+}
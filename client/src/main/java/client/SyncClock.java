@@ -0,0 +1,113 @@
+package client;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// Synchronized virtual clock built on System.nanoTime. Readers never lock:
+// parameters are published under a sequence lock, and a read retries only
+// when it overlaps an update, which happens once per poll. The clock runs
+// at (1 + freq) times nanoTime plus a phase slew that lasts until slewEnd,
+// and every update rebases at the current reading, so nowNanos() never
+// goes backwards.
+public class SyncClock {
+    private final static VarHandle VERSION;
+
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(SyncClock.class, "version", long.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Odd while an update is in progress
+    private long version = 0;
+
+    private long baseNano;
+
+    private long baseEpochNanos;
+
+    private double freq;
+
+    private double slew;
+
+    private long slewEndNano;
+
+    private volatile boolean synced = false;
+
+    public SyncClock() {
+        baseNano = ticks();
+        baseEpochNanos = localNanos();
+    }
+
+    // Time sources, overridden to replay recorded samples offline. Live
+    // runs never load a subclass, so the calls are inlined.
+    protected long ticks() {
+        return System.nanoTime();
+    }
+
+    // Undisciplined local time in nanoseconds since epoch
+    protected long localNanos() {
+        return Packet.nowNanos();
+    }
+
+    public long nowNanos() {
+        while (true) {
+            long v = (long) VERSION.getAcquire(this);
+            if ((v & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            long nano = ticks();
+            long base = baseNano;
+            long epoch = baseEpochNanos;
+            double f = freq;
+            double s = slew;
+            long end = slewEndNano;
+
+            VarHandle.loadLoadFence();
+            if ((long) VERSION.getVolatile(this) == v) {
+                return valueAt(nano, base, epoch, f, s, end);
+            }
+        }
+    }
+
+    private static long valueAt(long nano, long base, long epoch, double f, double s, long end) {
+        long dt = nano - base;
+        long slewing = Math.min(dt, Math.max(0, end - base));
+        return epoch + dt + Math.round(dt * f + slewing * s);
+    }
+
+    // Fractional frequency correction applied to nanoTime
+    public double frequency() {
+        return freq;
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    // Only called from the discipline loop. The clock keeps its current
+    // reading plus stepNanos and continues at the new frequency and slew
+    // rate for slewNanos. nanoTime is taken once readers are locked out, so
+    // every reading of the old parameters precedes the new base.
+    synchronized void update(double newFreq, double newSlew, long slewNanos, long stepNanos) {
+        long v = version;
+        VERSION.setVolatile(this, v + 1);
+        VarHandle.storeStoreFence();
+
+        long nano = ticks();
+        long current = valueAt(nano, baseNano, baseEpochNanos, freq, slew, slewEndNano);
+
+        baseNano = nano;
+        baseEpochNanos = current + stepNanos;
+        freq = newFreq;
+        slew = newSlew;
+        slewEndNano = nano + slewNanos;
+
+        VERSION.setRelease(this, v + 2);
+        synced = true;
+    }
+}
@@ -0,0 +1,123 @@
+package client;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+// Hashed timing wheel handing each request's seq to an expiry callback,
+// normally InFlightTable.expire(seq), once its deadline passes. Deadlines
+// are System.nanoTime values. Scheduling is O(1) and cancelling is free: a
+// request that matched simply fails the expire CAS.
+public class TimingWheel extends Thread {
+    private final static int INITIAL_BUCKET_SIZE = 8;
+
+    private final IntConsumer onDeadline;
+
+    private final long tickNanos;
+
+    private final int mask;
+
+    private final Bucket[] buckets;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile boolean idle = false;
+
+    private volatile boolean running = true;
+
+    private static class Bucket {
+        int[] seqs = new int[INITIAL_BUCKET_SIZE];
+
+        long[] deadlines = new long[INITIAL_BUCKET_SIZE];
+
+        int size = 0;
+
+        synchronized void add(int seq, long deadline) {
+            if (size == seqs.length) {
+                seqs = Arrays.copyOf(seqs, size * 2);
+                deadlines = Arrays.copyOf(deadlines, size * 2);
+            }
+            seqs[size] = seq;
+            deadlines[size] = deadline;
+            size++;
+        }
+    }
+
+    public TimingWheel(IntConsumer onDeadline, long tickNanos, int wheelSize) {
+        super("timing-wheel");
+        setDaemon(true);
+        this.onDeadline = onDeadline;
+        this.tickNanos = tickNanos;
+        int slots = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        this.mask = slots - 1;
+        this.buckets = new Bucket[slots];
+        for (int i = 0; i < slots; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    public void schedule(int seq, long deadlineNanos) {
+        buckets[(int) ((deadlineNanos / tickNanos) & mask)].add(seq, deadlineNanos);
+        pending.incrementAndGet();
+        if (idle) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    public int pending() {
+        return pending.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(this);
+    }
+
+    public void run() {
+        long tick = System.nanoTime() / tickNanos;
+
+        while (running) {
+            if (pending.get() == 0) {
+                idle = true;
+                // Re-check so a schedule() racing with going idle is not missed
+                if (pending.get() == 0) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                continue;
+            }
+
+            long now = System.nanoTime();
+            long nowTick = now / tickNanos;
+            // Process each tick once it has ended, when every deadline its
+            // bucket holds for this rotation has passed. One rotation covers
+            // the whole wheel, so a longer stall skips ahead to now
+            long end = Math.min(nowTick, tick + buckets.length);
+            for (; tick < end; tick++) {
+                fire(buckets[(int) (tick & mask)], now);
+            }
+            tick = Math.max(tick, nowTick);
+
+            LockSupport.parkNanos(this, (tick + 1) * tickNanos - System.nanoTime());
+        }
+    }
+
+    private void fire(Bucket bucket, long now) {
+        synchronized (bucket) {
+            int kept = 0;
+            for (int i = 0; i < bucket.size; i++) {
+                if (bucket.deadlines[i] > now) {
+                    // Due in a later rotation
+                    bucket.seqs[kept] = bucket.seqs[i];
+                    bucket.deadlines[kept] = bucket.deadlines[i];
+                    kept++;
+                    continue;
+                }
+                onDeadline.accept(bucket.seqs[i]);
+                pending.decrementAndGet();
+            }
+            bucket.size = kept;
+        }
+    }
+}
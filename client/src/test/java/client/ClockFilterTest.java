@@ -0,0 +1,134 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ClockFilterTest {
+    // Samples in arrival order, the filter window is always a suffix
+    private final List<double[]> samples = new ArrayList<>();
+
+    private final List<Long> times = new ArrayList<>();
+
+    private void add(ClockFilter filter, double rtt, double theta, long time) {
+        filter.add(rtt, theta, time);
+        samples.add(new double[] {rtt, theta});
+        times.add(time);
+    }
+
+    // Index of the minimum RTT sample over the last size samples, the newest
+    // of equal RTTs wins
+    private int bruteForceMin(int size) {
+        int best = -1;
+        for (int i = samples.size() - size; i < samples.size(); i++) {
+            if (best < 0 || samples.get(i)[0] <= samples.get(best)[0]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private double bruteForceJitter(int size, double selected) {
+        if (size < 2) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = samples.size() - size; i < samples.size(); i++) {
+            double d = samples.get(i)[1] - selected;
+            sum += d * d;
+        }
+        return Math.sqrt(sum / (size - 1));
+    }
+
+    private void assertMatchesBruteForce(ClockFilter filter, int size) {
+        assertEquals(size, filter.size());
+        int best = bruteForceMin(size);
+        assertEquals(samples.get(best)[0], filter.delay(), 0);
+        assertEquals(samples.get(best)[1], filter.offset(), 0);
+        assertEquals((long) times.get(best), filter.selectedTime());
+        assertEquals(bruteForceJitter(size, filter.offset()), filter.jitter(), 1e-12);
+    }
+
+    @Test
+    public void minimumMatchesBruteForceOverCountWindow() {
+        Random random = new Random(1);
+        ClockFilter filter = new ClockFilter(8, 0);
+        for (int i = 0; i < 1000; i++) {
+            // Few distinct RTTs so ties are common
+            add(filter, random.nextInt(5) * 1e-4, random.nextGaussian() * 1e-3, i * 1_000_000L);
+            assertMatchesBruteForce(filter, Math.min(i + 1, 8));
+        }
+    }
+
+    @Test
+    public void increasingRttKeepsOldestUntilItLeavesTheWindow() {
+        ClockFilter filter = new ClockFilter(4, 0);
+        for (int i = 0; i < 10; i++) {
+            add(filter, 1e-3 + i * 1e-4, i, i);
+            assertMatchesBruteForce(filter, Math.min(i + 1, 4));
+        }
+        assertEquals(6, filter.offset(), 0);
+    }
+
+    @Test
+    public void samplesExpireByAge() {
+        Random random = new Random(2);
+        long maxAge = 50_000_000L;
+        ClockFilter filter = new ClockFilter(16, maxAge);
+        long time = 0;
+        for (int i = 0; i < 500; i++) {
+            time += random.nextInt(20_000_000);
+            add(filter, random.nextDouble() * 1e-3, random.nextGaussian() * 1e-3, time);
+
+            int size = 0;
+            while (size < Math.min(samples.size(), 16) && time - times.get(samples.size() - 1 - size) <= maxAge) {
+                size++;
+            }
+            assertMatchesBruteForce(filter, size);
+        }
+    }
+
+    @Test
+    public void expireEmptiesTheWindow() {
+        ClockFilter filter = new ClockFilter(4, 10);
+        filter.add(1e-3, 0.5, 0);
+        filter.add(2e-3, 0.25, 5);
+        filter.expire(12);
+        assertEquals(1, filter.size());
+        assertEquals(0.25, filter.offset(), 0);
+        filter.expire(16);
+        assertTrue(filter.isEmpty());
+        assertEquals(0, filter.jitter(), 0);
+    }
+
+    @Test
+    public void copyToRebuildsTheSameWindow() {
+        Random random = new Random(3);
+        ClockFilter filter = new ClockFilter(8, 0);
+        for (int i = 0; i < 13; i++) {
+            filter.add(random.nextDouble() * 1e-3, random.nextGaussian() * 1e-3, i);
+        }
+
+        double[] rtts = new double[filter.capacity()];
+        double[] thetas = new double[filter.capacity()];
+        long[] sampleTimes = new long[filter.capacity()];
+        int n = filter.copyTo(rtts, thetas, sampleTimes);
+        assertEquals(8, n);
+        assertEquals(5, sampleTimes[0]);
+
+        ClockFilter restored = new ClockFilter(8, 0);
+        for (int i = 0; i < n; i++) {
+            restored.add(rtts[i], thetas[i], sampleTimes[i]);
+        }
+        assertEquals(filter.size(), restored.size());
+        assertEquals(filter.delay(), restored.delay(), 0);
+        assertEquals(filter.offset(), restored.offset(), 0);
+        assertEquals(filter.selectedTime(), restored.selectedTime());
+        assertEquals(filter.jitter(), restored.jitter(), 1e-12);
+    }
+}
@@ -0,0 +1,103 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalTest {
+    private final static List<String> SERVERS = Arrays.asList("10.0.0.1:4011", "10.0.0.2:4011");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    // Each record as seq, peer, flags, T1..T4
+    private static List<long[]> readAll(Path dir) throws IOException {
+        List<long[]> records = new ArrayList<>();
+        Journal.read(dir, (servers, buf, at) -> {
+            assertEquals(SERVERS, servers);
+            records.add(new long[] {
+                    buf.getInt(at + Journal.SEQ_OFFSET),
+                    buf.getShort(at + Journal.PEER_OFFSET),
+                    buf.getShort(at + Journal.FLAGS_OFFSET) & ~Journal.FLAG_COMMITTED,
+                    buf.getLong(at + Journal.T1_OFFSET),
+                    buf.getLong(at + Journal.T2_OFFSET),
+                    buf.getLong(at + Journal.T3_OFFSET),
+                    buf.getLong(at + Journal.T4_OFFSET)});
+        });
+        return records;
+    }
+
+    private static long[] record(int i) {
+        return new long[] {i + 1, i % 2, i % 3 == 0 ? Journal.FLAG_LATE : 0, 1000L * i, 1000L * i + 1,
+                1000L * i + 2, 1000L * i + 3};
+    }
+
+    private static void append(Journal journal, long[] r) {
+        journal.append((int) r[0], (int) r[1], (int) r[2], r[3], r[4], r[5], r[6]);
+    }
+
+    @Test
+    public void recordsReadBackInOrderAcrossRollover() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Journal journal = new Journal(dir, 4, SERVERS);
+        for (int i = 0; i < 10; i++) {
+            append(journal, record(i));
+        }
+        journal.close();
+
+        assertEquals(10, journal.getWritten());
+        assertEquals(3, Journal.segments(dir).size());
+        List<long[]> records = readAll(dir);
+        assertEquals(10, records.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Arrays.toString(record(i)), Arrays.toString(records.get(i)));
+        }
+    }
+
+    @Test
+    public void recordWithSeqZeroDoesNotEndTheSegment() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Journal journal = new Journal(dir, 8, SERVERS);
+        append(journal, record(0));
+        append(journal, new long[] {0, 0, Journal.FLAG_LATE, 1, 2, 3, 4});
+        append(journal, record(2));
+        journal.close();
+
+        List<long[]> records = readAll(dir);
+        assertEquals(3, records.size());
+        assertEquals(0, records.get(1)[0]);
+        assertEquals(Arrays.toString(record(2)), Arrays.toString(records.get(2)));
+    }
+
+    @Test
+    public void laterRunContinuesWithTheNextSegment() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Journal first = new Journal(dir, 8, SERVERS);
+        append(first, record(0));
+        first.close();
+        Journal second = new Journal(dir, 8, SERVERS);
+        append(second, record(1));
+        second.close();
+
+        assertEquals(2, Journal.segments(dir).size());
+        List<long[]> records = readAll(dir);
+        assertEquals(2, records.size());
+        assertEquals(Arrays.toString(record(1)), Arrays.toString(records.get(1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFilesThatAreNotSegments() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Files.write(dir.resolve("segment-000000.journal"), new byte[Journal.HEADER_SIZE]);
+        Journal.read(dir, (servers, buf, at) -> { });
+    }
+}
@@ -0,0 +1,122 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class KeysTest {
+    // The key of the SipHash paper's test vectors, bytes 00..0f
+    private final static String REFERENCE_KEY = "000102030405060708090a0b0c0d0e0f";
+
+    private final static Keys.Key KEY = Keys.parse(Collections.singletonList("1 " + REFERENCE_KEY)).get(1);
+
+    // Message of the reference vectors: bytes 00, 01, 02, ...
+    private static ByteBuffer message(int length, ByteOrder order) {
+        ByteBuffer buf = ByteBuffer.allocate(64).order(order);
+        for (int i = 0; i < length; i++) {
+            buf.put(i, (byte) i);
+        }
+        return buf;
+    }
+
+    private static ByteBuffer request() {
+        ByteBuffer buf = ByteBuffer.allocate(Keys.SIZE);
+        Packet.encodeRequest(buf, 1234, 1_546_300_800_000_000_000L);
+        return buf;
+    }
+
+    @Test
+    public void macMatchesReferenceVectors() {
+        // Output of the reference implementation read as a little-endian word
+        long[][] vectors = {
+                {0, 0x726fdb47dd0e0e31L},
+                {8, 0x93f5f5799a932462L},
+                {15, 0xa129ca6149be45e5L},
+                {63, 0x958a324ceb064572L}};
+        for (long[] v : vectors) {
+            int length = (int) v[0];
+            assertEquals("length " + length, v[1], Keys.mac(KEY, message(length, ByteOrder.BIG_ENDIAN), length));
+        }
+    }
+
+    @Test
+    public void macDoesNotDependOnByteOrder() {
+        for (int length = 0; length < 64; length++) {
+            assertEquals(Keys.mac(KEY, message(length, ByteOrder.BIG_ENDIAN), length),
+                    Keys.mac(KEY, message(length, ByteOrder.LITTLE_ENDIAN), length));
+        }
+    }
+
+    @Test
+    public void signedPacketVerifies() {
+        ByteBuffer buf = request();
+        Keys.sign(KEY, buf);
+
+        assertEquals(Keys.SIZE, buf.limit());
+        assertEquals(1, buf.getInt(Keys.KEY_ID_OFFSET));
+        assertTrue(Keys.verify(KEY, buf, Keys.SIZE));
+    }
+
+    @Test
+    public void changedPacketFailsVerification() {
+        for (int i = 0; i < Keys.SIZE; i++) {
+            ByteBuffer buf = request();
+            Keys.sign(KEY, buf);
+            buf.put(i, (byte) (buf.get(i) ^ 1));
+            assertFalse("byte " + i, Keys.verify(KEY, buf, Keys.SIZE));
+        }
+    }
+
+    @Test
+    public void packetWithoutMacFailsVerification() {
+        ByteBuffer buf = request();
+        Keys.sign(KEY, buf);
+        assertFalse(Keys.verify(KEY, buf, Packet.SIZE));
+    }
+
+    @Test
+    public void verifyLooksUpTheKeyById() {
+        Keys keys = Keys.parse(Arrays.asList(
+                "# two keys",
+                "1 " + REFERENCE_KEY,
+                "",
+                "7 ffeeddccbbaa99887766554433221100  # second"));
+        Keys.Key seven = keys.get(7);
+
+        ByteBuffer buf = request();
+        Keys.sign(seven, buf);
+        assertSame(seven, keys.verify(buf, Keys.SIZE));
+        assertFalse(Keys.verify(KEY, buf, Keys.SIZE));
+
+        // Same MAC claimed under another key id
+        buf.putInt(Keys.KEY_ID_OFFSET, 1);
+        assertNull(keys.verify(buf, Keys.SIZE));
+
+        buf.putInt(Keys.KEY_ID_OFFSET, 3);
+        assertNull(keys.verify(buf, Keys.SIZE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortKeys() {
+        Keys.parse(Collections.singletonList("1 0001020304"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsKeyIdZero() {
+        Keys.parse(Collections.singletonList("0 " + REFERENCE_KEY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFilesWithoutKeys() {
+        Keys.parse(Arrays.asList("# nothing", ""));
+    }
+}
@@ -0,0 +1,109 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+public class SelectorTest {
+    private final static long NOW = 1_000_000_000L;
+
+    // Peers with one sample each taken now, so a peer's distance is half
+    // its RTT plus the filter precision
+    private static Peer[] peers(double[] offsets, double[] rtts) {
+        Peer[] peers = new Peer[offsets.length];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = new Peer(i, InetAddress.getLoopbackAddress(), 4011 + i, new InFlightTable(16, null),
+                    new ClockFilter(8, 0), 0.1);
+            peers[i].filter.add(rtts[i], offsets[i], NOW);
+        }
+        return peers;
+    }
+
+    @Test
+    public void noSamplesGivesNaN() {
+        Peer[] peers = peers(new double[0], new double[0]);
+        assertTrue(Double.isNaN(new Selector(4).select(peers, NOW)));
+    }
+
+    @Test
+    public void falsetickerAmongThree() {
+        Peer[] peers = peers(new double[] {0, 0.001, 0.5}, new double[] {0.01, 0.01, 0.01});
+        Selector selector = new Selector(3);
+        double offset = selector.select(peers, NOW);
+
+        assertTrue(selector.hadMajority());
+        assertEquals(0.0005, offset, 1e-12);
+        assertEquals(1, peers[0].selected);
+        assertEquals(1, peers[1].selected);
+        assertEquals(0, peers[2].selected);
+        assertEquals(1, peers[2].falseticker);
+    }
+
+    @Test
+    public void falsetickerAmongFour() {
+        Peer[] peers = peers(new double[] {0, 0.002, 0.004, -1.0}, new double[] {0.01, 0.01, 0.01, 0.01});
+        Selector selector = new Selector(4);
+        double offset = selector.select(peers, NOW);
+
+        assertTrue(selector.hadMajority());
+        assertEquals(0.002, offset, 1e-12);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, peers[i].selected);
+        }
+        assertEquals(1, peers[3].falseticker);
+    }
+
+    @Test
+    public void survivorsAreWeightedByDistance() {
+        Peer[] peers = peers(new double[] {0, 0.003}, new double[] {0.01, 0.02});
+        double offset = new Selector(2).select(peers, NOW);
+
+        double w0 = 1 / (0.005 + 1e-6);
+        double w1 = 1 / (0.01 + 1e-6);
+        assertEquals(w1 * 0.003 / (w0 + w1), offset, 1e-12);
+    }
+
+    @Test
+    public void noMajorityFallsBackToClosestPeer() {
+        Peer[] peers = peers(new double[] {0, 1.0, 2.0}, new double[] {0.01, 0.002, 0.01});
+        Selector selector = new Selector(3);
+        double offset = selector.select(peers, NOW);
+
+        assertFalse(selector.hadMajority());
+        assertEquals(1.0, offset, 0);
+        assertEquals(1, peers[1].selected);
+        assertEquals(1, peers[0].falseticker);
+        assertEquals(1, peers[2].falseticker);
+    }
+
+    @Test
+    public void twoDisjointPeersHaveNoMajority() {
+        Peer[] peers = peers(new double[] {0, 1.0}, new double[] {0.004, 0.01});
+        Selector selector = new Selector(2);
+
+        assertEquals(0, selector.select(peers, NOW), 0);
+        assertFalse(selector.hadMajority());
+    }
+
+    @Test
+    public void clusteringDropsTheOutlierWithinTheIntersection() {
+        // All five intervals overlap, but the last offset is far from the
+        // others compared to the peers' own jitter
+        Peer[] peers = peers(new double[] {0, 0.0001, 0.0002, 0.0003, 0.04}, new double[] {0.1, 0.1, 0.1, 0.1, 0.1});
+        for (Peer peer : peers) {
+            peer.filter.add(0.2, peer.filter.offset() + 1e-3, NOW);
+        }
+        Selector selector = new Selector(5);
+        selector.select(peers, NOW);
+
+        assertTrue(selector.hadMajority());
+        assertEquals(1, peers[4].falseticker);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1, peers[i].selected);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TimingWheelTest {
+    private final static long TICK_NANOS = 1_000_000L;
+
+    private final static int SLOTS = 1024;
+
+    // Generous for a loaded machine, yet far below the one rotation, about
+    // a second, that a skipped bucket would add
+    private final static long SLACK_NANOS = 200_000_000L;
+
+    private TimingWheel wheel;
+
+    @After
+    public void shutdown() {
+        wheel.shutdown();
+    }
+
+    @Test
+    public void deadlineFiresWithinATickOfPassing() throws InterruptedException {
+        BlockingQueue<Long> firedAt = new LinkedBlockingQueue<>();
+        wheel = new TimingWheel(seq -> firedAt.add(System.nanoTime()), TICK_NANOS, SLOTS);
+        wheel.start();
+
+        for (int i = 0; i < 5; i++) {
+            long deadline = System.nanoTime() + 3 * TICK_NANOS;
+            wheel.schedule(i + 1, deadline);
+            Long at = firedAt.poll(2, TimeUnit.SECONDS);
+            assertNotNull(at);
+            assertTrue(at >= deadline);
+            assertTrue("fired " + (at - deadline) + " ns late", at - deadline < SLACK_NANOS);
+        }
+    }
+
+    @Test
+    public void everyDeadlineFiresOnceInOrderOfTicks() throws InterruptedException {
+        ConcurrentLinkedQueue<Integer> seqs = new ConcurrentLinkedQueue<>();
+        CountDownLatch done = new CountDownLatch(20);
+        wheel = new TimingWheel(seq -> {
+            seqs.add(seq);
+            done.countDown();
+        }, TICK_NANOS, SLOTS);
+        wheel.start();
+
+        // Deadlines 5 ticks apart, scheduled in reverse
+        long base = System.nanoTime() + 10 * TICK_NANOS;
+        for (int i = 19; i >= 0; i--) {
+            wheel.schedule(i + 1, base + i * 5 * TICK_NANOS);
+        }
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        // Nothing fires twice once its bucket comes round again
+        Thread.sleep(SLOTS * TICK_NANOS / 1_000_000L + 100);
+        assertEquals(20, seqs.size());
+        int expected = 1;
+        for (int seq : seqs) {
+            assertEquals(expected++, seq);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package server;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import client.Keys;
+
+// One binary request/reply over loopback against a single worker NIO
+// engine in the same JVM. The client channel does not block, so a lost
+// datagram fails the iteration instead of hanging it. With auth the engine
+// requires a MAC, and the client signs every request and checks every reply.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoundTripBenchmark {
+    private final static long REPLY_TIMEOUT_NANOS = 1_000_000_000L;
+
+    @Param({"false", "true"})
+    public boolean auth;
+
+    private NioEngine engine;
+
+    private Keys.Key key;
+
+    private DatagramChannel channel;
+
+    private final ByteBuffer request = ByteBuffer.allocateDirect(Keys.SIZE);
+
+    private final ByteBuffer reply = ByteBuffer.allocateDirect(1024);
+
+    private int seq = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Keys keys = auth ? Keys.parse(List.of("1 000102030405060708090a0b0c0d0e0f")) : null;
+        key = auth ? keys.get(1) : null;
+        engine = new NioEngine(port, 1, null, new ServerMetrics(null), null, keys, auth);
+        engine.start();
+
+        channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress("127.0.0.1", port));
+        channel.configureBlocking(false);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+        engine.stop();
+    }
+
+    @Benchmark
+    public long roundTrip() throws IOException {
+        request.clear();
+        request.put(Packet.VERSION_OFFSET, Packet.VERSION);
+        request.put(Packet.MODE_OFFSET, Packet.MODE_REQUEST);
+        request.putInt(Packet.SEQ_OFFSET, ++seq);
+        request.putLong(Packet.ORIGIN_OFFSET, NanoClock.now());
+        if (key != null) {
+            Keys.sign(key, request);
+        }
+        request.limit(key != null ? Keys.SIZE : Packet.SIZE);
+        channel.write(request);
+
+        reply.clear();
+        long deadline = System.nanoTime() + REPLY_TIMEOUT_NANOS;
+        int length;
+        while ((length = channel.read(reply)) == 0) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("No reply to request " + seq);
+            }
+        }
+        if (key != null && !Keys.verify(key, reply, length)) {
+            throw new IllegalStateException("Reply failed authentication");
+        }
+        return reply.getLong(Packet.TRANSMIT_OFFSET);
+    }
+}
@@ -0,0 +1,194 @@
+package harness;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class Config {
+    public final static String USAGE = "Usage: ./harness [options] [-- client options]\n" +
+            "       java -cp build/classes/java/main harness.ImpairmentProxy --server=HOST:PORT [options]\n" +
+            "  A/B values set the client to server and server to client directions, A alone sets both\n" +
+            "  --delay-ms=A[/B]       Fixed one-way delay in ms\n" +
+            "  --jitter-ms=A[/B]      Mean random extra delay in ms\n" +
+            "  --jitter=DIST          uniform, exp or pareto\n" +
+            "  --loss=A[/B]           Probability a packet is dropped\n" +
+            "  --duplicate=A[/B]      Probability a packet is delivered twice\n" +
+            "  --reorder=A[/B]        Probability a packet is held back and overtaken\n" +
+            "  --reorder-ms=X         How long a reordered packet is held back\n" +
+            "  --seed=N               Random seed, the same seed replays the same impairments\n" +
+            "  --proxy-port=N         UDP port the proxy listens on\n" +
+            "  --server=HOST:PORT     Server the standalone proxy forwards to\n" +
+            "  --server-port=N        UDP port of the harness's own server\n" +
+            "  --server-offset-ms=X   Error of the server clock against the system clock\n" +
+            "  --server-ppm=X         Frequency error of the server clock\n" +
+            "  --seconds=N            Length of a harness run\n" +
+            "  --sample-ms=N          Interval between offset error samples\n" +
+            "  --converged-us=X       Error bound that counts as converged";
+
+    public final static String[] DISTRIBUTIONS = {"uniform", "exp", "pareto"};
+
+    // Index 0 is client to server, 1 server to client
+    public double[] delayMs = {0, 0};
+
+    public double[] jitterMs = {0, 0};
+
+    public String jitter = "exp";
+
+    public double[] loss = {0, 0};
+
+    public double[] duplicate = {0, 0};
+
+    public double[] reorder = {0, 0};
+
+    public double reorderMs = 10;
+
+    public long seed = 1;
+
+    public int proxyPort = 4113;
+
+    // Standalone proxy only, the harness forwards to its own server
+    public String server = null;
+
+    public int serverPort = 4111;
+
+    // Ground truth of a harness run: the server clock is the system clock
+    // plus this offset, running fast by serverPpm
+    public double serverOffsetMs = 0;
+
+    public double serverPpm = 0;
+
+    public int seconds = 120;
+
+    public int sampleMs = 100;
+
+    public double convergedUs = 100;
+
+    // Everything after "--", passed on to client.Config
+    public List<String> clientArgs = new ArrayList<>();
+
+    public static Config parse(String[] args) {
+        Config config = new Config();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--")) {
+                config.clientArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            }
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + arg);
+            }
+
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+            String value = eq < 0 ? null : arg.substring(eq + 1);
+            config.set(name, value);
+        }
+
+        return config;
+    }
+
+    private static String required(String name, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("--" + name + " needs a value");
+        }
+        return value;
+    }
+
+    // "A" for both directions or "A/B"
+    private static double[] pair(String name, String value, double max) {
+        value = required(name, value);
+        int slash = value.indexOf('/');
+        double[] pair = slash < 0
+                ? new double[] {Double.parseDouble(value), Double.parseDouble(value)}
+                : new double[] {Double.parseDouble(value.substring(0, slash)),
+                                Double.parseDouble(value.substring(slash + 1))};
+        for (double v : pair) {
+            if (!(v >= 0 && v <= max)) {
+                throw new IllegalArgumentException("--" + name + " must be between 0 and " + max);
+            }
+        }
+        return pair;
+    }
+
+    private static int port(String name, String value) {
+        int port = Integer.parseInt(required(name, value));
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("--" + name + " must be between 1 and 65535");
+        }
+        return port;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "delay-ms":
+                delayMs = pair(name, value, Double.MAX_VALUE);
+                break;
+            case "jitter-ms":
+                jitterMs = pair(name, value, Double.MAX_VALUE);
+                break;
+            case "jitter":
+                jitter = required(name, value);
+                if (!Arrays.asList(DISTRIBUTIONS).contains(jitter)) {
+                    throw new IllegalArgumentException("--jitter must be one of " + String.join(", ", DISTRIBUTIONS));
+                }
+                break;
+            case "loss":
+                loss = pair(name, value, 1);
+                break;
+            case "duplicate":
+                duplicate = pair(name, value, 1);
+                break;
+            case "reorder":
+                reorder = pair(name, value, 1);
+                break;
+            case "reorder-ms":
+                reorderMs = Double.parseDouble(required(name, value));
+                if (!(reorderMs >= 0)) {
+                    throw new IllegalArgumentException("--reorder-ms must not be negative");
+                }
+                break;
+            case "seed":
+                seed = Long.parseLong(required(name, value));
+                break;
+            case "proxy-port":
+                proxyPort = port(name, value);
+                break;
+            case "server":
+                server = required(name, value);
+                break;
+            case "server-port":
+                serverPort = port(name, value);
+                break;
+            case "server-offset-ms":
+                serverOffsetMs = Double.parseDouble(required(name, value));
+                break;
+            case "server-ppm":
+                serverPpm = Double.parseDouble(required(name, value));
+                if (!(Math.abs(serverPpm) <= 500)) {
+                    throw new IllegalArgumentException("--server-ppm must be within 500 ppm");
+                }
+                break;
+            case "seconds":
+                seconds = Integer.parseInt(required(name, value));
+                if (seconds < 1) {
+                    throw new IllegalArgumentException("--seconds must be at least 1");
+                }
+                break;
+            case "sample-ms":
+                sampleMs = Integer.parseInt(required(name, value));
+                if (sampleMs < 1) {
+                    throw new IllegalArgumentException("--sample-ms must be at least 1");
+                }
+                break;
+            case "converged-us":
+                convergedUs = Double.parseDouble(required(name, value));
+                if (!(convergedUs > 0)) {
+                    throw new IllegalArgumentException("--converged-us must be positive");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package harness;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import client.Client;
+import client.ClientReceiver;
+import server.NanoClock;
+import server.NioEngine;
+import server.ServerMetrics;
+
+// Runs a server, the impairment proxy and a client session in one JVM on
+// loopback and measures the session against ground truth: the server's
+// clock is a SkewedClock, so the true offset is known at every instant and
+// the client's error is its disciplined clock minus the server clock, read
+// back to back. Reports the error distribution, when the error settled
+// within --converged-us for good, packet loss on both sides, and CPU time
+// and allocation per thread group from the thread MXBean.
+//   ./harness [options] [-- client options]
+public class Harness {
+    private final static String REPORT = "harness.log";
+
+    // Thread name prefixes of each component
+    private final static String[][] GROUPS = {
+            {"client", "client-receiver", "poll-scheduler", "timing-wheel", "client-log", "client-timer"},
+            {"server", "nio-worker-"},
+            {"proxy", "impairment-proxy"}};
+
+    private final Config config;
+
+    private final SkewedClock serverClock;
+
+    private NioEngine engine;
+
+    private ImpairmentProxy proxy;
+
+    private Client session;
+
+    private ClientReceiver receiver;
+
+    // Offset error per sample in ns, Long.MIN_VALUE before the client synced
+    private final long[] errors;
+
+    private final long[] cpuNanos = new long[GROUPS.length];
+
+    private final long[] allocated = new long[GROUPS.length];
+
+    private long receiverAllocated = 0;
+
+    // Receiver allocation and replies at half time, the second half of the
+    // run gives the steady state cost per reply without startup
+    private long halfAllocated = 0;
+
+    private long halfReceived = 0;
+
+    public Harness(Config config) {
+        this.config = config;
+        this.serverClock = new SkewedClock(Math.round(config.serverOffsetMs * 1e6), config.serverPpm);
+        this.errors = new long[(int) (config.seconds * 1000L / config.sampleMs)];
+    }
+
+    public void start() throws IOException {
+        // Single worker, no rate limiter: the server is not what is measured
+        NanoClock.follow(serverClock);
+        engine = new NioEngine(config.serverPort, 1, null, new ServerMetrics(null), null);
+        engine.start();
+
+        proxy = new ImpairmentProxy(config.proxyPort, new InetSocketAddress("127.0.0.1", config.serverPort),
+                new Impairment("up  ", config, 0), new Impairment("down", config, 1));
+        proxy.start();
+
+        // The defaults come first so the client options can override them
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "127.0.0.1:" + config.proxyPort, "0", "--port=0", "--quiet"));
+        args.addAll(config.clientArgs);
+        client.Config clientConfig = client.Config.parse(args.toArray(new String[0]));
+        session = new Client(clientConfig);
+        receiver = session.start(clientConfig);
+    }
+
+    public void run() {
+        long sampleNanos = config.sampleMs * 1_000_000L;
+        long next = System.nanoTime();
+        for (int i = 0; i < errors.length; i++) {
+            next += sampleNanos;
+            long remaining;
+            while ((remaining = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+            errors[i] = session.clock.isSynced()
+                    ? session.clock.nowNanos() - serverClock.nowNanos()
+                    : Long.MIN_VALUE;
+
+            if (i == errors.length / 2) {
+                halfReceived = session.recvPackets;
+                halfAllocated = allocatedBy(receiver);
+            }
+        }
+        measureThreads();
+    }
+
+    private static long allocatedBy(Thread thread) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return Math.max(0, threads.getThreadAllocatedBytes(thread.getId()));
+    }
+
+    // CPU and allocation of every live thread so far, taken before the
+    // session stops and its threads exit
+    private void measureThreads() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            for (int g = 0; g < GROUPS.length; g++) {
+                for (int p = 1; p < GROUPS[g].length; p++) {
+                    if (!thread.getName().startsWith(GROUPS[g][p])) {
+                        continue;
+                    }
+                    long id = thread.getId();
+                    cpuNanos[g] += Math.max(0, threads.getThreadCpuTime(id));
+                    long bytes = Math.max(0, threads.getThreadAllocatedBytes(id));
+                    allocated[g] += bytes;
+                    if (thread == receiver) {
+                        receiverAllocated = bytes;
+                    }
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        session.stop(receiver);
+        proxy.shutdown();
+        try {
+            proxy.join();
+            engine.stop();
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String buildReport() {
+        long bound = Math.round(config.convergedUs * 1000);
+        int unsynced = 0;
+        int lastOutside = -1;
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i] == Long.MIN_VALUE) {
+                unsynced++;
+                lastOutside = i;
+            }
+            else if (Math.abs(errors[i]) > bound) {
+                lastOutside = i;
+            }
+        }
+        boolean converged = lastOutside < errors.length - 1;
+
+        double[] all = errorsFrom(unsynced);
+        double[] settled = converged ? errorsFrom(lastOutside + 1) : new double[0];
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Run time (s)                : %d\n", config.seconds))
+              .append(String.format("Seed                        : %d\n", config.seed))
+              .append(String.format("Server offset / ppm         : %.3f ms / %.3f\n", config.serverOffsetMs, config.serverPpm))
+              .append(String.format("Mean delay up/down (s)      : %.6f / %.6f\n", proxy.up.meanDelay(), proxy.down.meanDelay()))
+              .append(String.format("Expected asymmetry bias (s) : %.6f\n",
+                      (proxy.up.meanDelay() - proxy.down.meanDelay()) / 2))
+              .append(String.format("Error samples / unsynced    : %d / %d\n", errors.length, unsynced))
+              .append(String.format("%-28s: %s\n", String.format("Converged within %.0f us", config.convergedUs),
+                      converged ? String.format("after %.1f s", (lastOutside + 1) * config.sampleMs / 1000.0) : "no"))
+              .append(percentiles("Error", all))
+              .append(percentiles("Error converged", settled))
+              .append(String.format("Client sent/received        : %d / %d\n", session.getSentPackets(), session.recvPackets))
+              .append(String.format("Client dropped/late         : %d / %d\n", session.drops.count(), session.lateReplies))
+              .append(String.format("Client frequency (ppm)      : %.3f\n", session.discipline.frequencyPpm()))
+              .append(proxy).append('\n');
+        for (int g = 0; g < GROUPS.length; g++) {
+            report.append(String.format("CPU / allocated %-12s: %.3f s / %d bytes\n",
+                    GROUPS[g][0], cpuNanos[g] / 1e9, allocated[g]));
+        }
+        long received = session.recvPackets - halfReceived;
+        report.append(String.format("Receiver bytes per reply    : %.1f (second half)\n",
+                received == 0 ? Double.NaN : (double) (receiverAllocated - halfAllocated) / received));
+        return report.toString();
+    }
+
+    // Offset errors in seconds from sample index first on
+    private double[] errorsFrom(int first) {
+        double[] values = new double[Math.max(0, errors.length - first)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = errors[first + i] == Long.MIN_VALUE ? Double.NaN : errors[first + i] / 1e9;
+        }
+        return values;
+    }
+
+    // Mean, and percentiles of the absolute error
+    private static String percentiles(String label, double[] values) {
+        double[] abs = Arrays.stream(values).filter(v -> !Double.isNaN(v)).map(Math::abs).sorted().toArray();
+        if (abs.length == 0) {
+            return String.format("%-28s: -\n", label + " (s)");
+        }
+        double mean = Arrays.stream(values).filter(v -> !Double.isNaN(v)).average().orElse(Double.NaN);
+        return String.format("%-28s: mean %.6f |p50| %.6f |p99| %.6f |max| %.6f\n", label + " (s)",
+                mean, abs[(int) (abs.length * 0.50)], abs[Math.min(abs.length - 1, (int) (abs.length * 0.99))],
+                abs[abs.length - 1]);
+    }
+
+    public static void main(String[] args) {
+        Config config = null;
+        try {
+            config = Config.parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            System.out.println(Config.USAGE);
+            System.exit(1);
+        }
+
+        Harness harness = new Harness(config);
+        try {
+            harness.start();
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.out.println("ERROR: Cannot start harness. " + e.getMessage());
+            System.out.println(Config.USAGE);
+            System.exit(1);
+        }
+
+        System.out.println("Harness running for " + config.seconds + " s...");
+        harness.run();
+        harness.stop();
+
+        String report = harness.buildReport();
+        System.out.println(report);
+        try {
+            Files.write(Paths.get(REPORT), report.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+    }
+}
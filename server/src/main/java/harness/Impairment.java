@@ -0,0 +1,126 @@
+package harness;
+
+import java.util.SplittableRandom;
+
+// Impairments of one direction of the proxied path. Every packet draws the
+// same five random numbers in the same order whatever the settings, so a
+// seed replays the same losses, delays and reorderings, and changing one
+// setting leaves the draws of the others in place. Delays are FIFO like a
+// real queue: a packet never overtakes the one before it unless it is
+// picked for reordering, which holds it back and lets later ones pass.
+public class Impairment {
+    // Tail index of the pareto jitter, heavy tailed but with a finite mean
+    private final static double PARETO_ALPHA = 1.5;
+
+    // Bound on a single jitter draw, anything later is as good as lost
+    private final static long MAX_JITTER_NANOS = 10_000_000_000L;
+
+    public final String name;
+
+    private final long delayNanos;
+
+    private final double jitterNanos;
+
+    private final String distribution;
+
+    private final double loss;
+
+    private final double duplicate;
+
+    private final double reorder;
+
+    private final long reorderNanos;
+
+    private final SplittableRandom random;
+
+    private long lastDue = Long.MIN_VALUE;
+
+    // Proxy thread only, read once it has stopped
+    public long packets = 0;
+
+    public long lost = 0;
+
+    public long duplicated = 0;
+
+    public long reordered = 0;
+
+    // direction is 0 for client to server and 1 for server to client
+    public Impairment(String name, Config config, int direction) {
+        this.name = name;
+        this.delayNanos = Math.round(config.delayMs[direction] * 1e6);
+        this.jitterNanos = config.jitterMs[direction] * 1e6;
+        this.distribution = config.jitter;
+        this.loss = config.loss[direction];
+        this.duplicate = config.duplicate[direction];
+        this.reorder = config.reorder[direction];
+        this.reorderNanos = Math.round(config.reorderMs * 1e6);
+        // Each direction has its own stream, so traffic in one does not
+        // shift the draws of the other
+        this.random = new SplittableRandom(config.seed * 2 + direction);
+    }
+
+    // Fills due with the delivery times of a packet that arrived at
+    // nowNanos and returns how many copies to deliver, 0 to 2
+    public int schedule(long nowNanos, long[] due) {
+        double lossDraw = random.nextDouble();
+        double jitterDraw = random.nextDouble();
+        double reorderDraw = random.nextDouble();
+        double duplicateDraw = random.nextDouble();
+        double duplicateJitterDraw = random.nextDouble();
+
+        packets++;
+        if (lossDraw < loss) {
+            lost++;
+            return 0;
+        }
+
+        long at = nowNanos + delayNanos + jitter(jitterDraw);
+        if (reorderDraw < reorder) {
+            reordered++;
+            at += reorderNanos;
+        }
+        else {
+            at = Math.max(at, lastDue);
+            lastDue = at;
+        }
+        due[0] = at;
+
+        if (duplicateDraw < duplicate) {
+            duplicated++;
+            due[1] = at + jitter(duplicateJitterDraw);
+            return 2;
+        }
+        return 1;
+    }
+
+    // Random extra delay with mean jitterNanos for a uniform draw u
+    private long jitter(double u) {
+        if (jitterNanos == 0) {
+            return 0;
+        }
+        double x;
+        switch (distribution) {
+            case "uniform":
+                x = 2 * jitterNanos * u;
+                break;
+            case "pareto":
+                // Lomax, a pareto shifted to start at 0
+                x = jitterNanos * (PARETO_ALPHA - 1) * (Math.pow(1 - u, -1 / PARETO_ALPHA) - 1);
+                break;
+            default:
+                x = -jitterNanos * Math.log(1 - u);
+                break;
+        }
+        return Math.min(MAX_JITTER_NANOS, Math.round(x));
+    }
+
+    // Mean one-way delay the settings give, reordering aside
+    public double meanDelay() {
+        return (delayNanos + jitterNanos) / 1e9;
+    }
+
+    public String toString() {
+        return String.format("%s %d packets, lost %d, duplicated %d, reordered %d",
+                name, packets, lost, duplicated, reordered);
+    }
+}
@@ -0,0 +1,239 @@
+package harness;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import client.Client;
+
+// UDP proxy between clients and one server that delays, drops, duplicates
+// and reorders packets as set by two Impairments, one per direction. Each
+// client gets its own socket towards the server, so replies find their way
+// back and the server sees one source per client. A single thread does
+// everything: it waits on the selector until the next delivery is due and
+// spins through the last millisecond, so delivery is late by no more than
+// a few tens of microseconds.
+public class ImpairmentProxy extends Thread {
+    private final static int BUFFER_SIZE = 1024;
+
+    private final static long SPIN_NANOS = 1_000_000L;
+
+    private final static int MAX_CLIENTS = 1024;
+
+    private final static int STATS_INTERVAL = 10;
+
+    static class Delivery implements Comparable<Delivery> {
+        final long due;
+
+        // Arrival order, breaks ties between equal due times
+        final long order;
+
+        final byte[] data;
+
+        final DatagramChannel out;
+
+        final InetSocketAddress to;
+
+        Delivery(long due, long order, byte[] data, DatagramChannel out, InetSocketAddress to) {
+            this.due = due;
+            this.order = order;
+            this.data = data;
+            this.out = out;
+            this.to = to;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            int c = Long.compare(due, other.due);
+            return c != 0 ? c : Long.compare(order, other.order);
+        }
+    }
+
+    public final Impairment up;
+
+    public final Impairment down;
+
+    private final InetSocketAddress server;
+
+    private final Selector selector;
+
+    private final DatagramChannel front;
+
+    // Client address to its channel towards the server
+    private final Map<InetSocketAddress, DatagramChannel> clients = new HashMap<>();
+
+    private final PriorityQueue<Delivery> queue = new PriorityQueue<>();
+
+    private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private final long[] due = new long[2];
+
+    private long order = 0;
+
+    private volatile boolean running = true;
+
+    public ImpairmentProxy(int port, InetSocketAddress server, Impairment up, Impairment down) throws IOException {
+        super("impairment-proxy");
+        this.server = server;
+        this.up = up;
+        this.down = down;
+        this.selector = Selector.open();
+        this.front = DatagramChannel.open();
+        front.bind(new InetSocketAddress(port));
+        front.configureBlocking(false);
+        front.register(selector, SelectionKey.OP_READ);
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                long wait = queue.isEmpty() ? Long.MAX_VALUE : queue.peek().due - System.nanoTime();
+                if (wait > SPIN_NANOS) {
+                    selector.select(wait == Long.MAX_VALUE ? 0 : (wait - SPIN_NANOS) / 1_000_000L + 1);
+                }
+                else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.channel() == front) {
+                        fromClients();
+                    }
+                    else {
+                        fromServer((DatagramChannel) key.channel(), (InetSocketAddress) key.attachment());
+                    }
+                }
+
+                long now = System.nanoTime();
+                while (!queue.isEmpty() && queue.peek().due - now <= 0) {
+                    Delivery d = queue.poll();
+                    d.out.send(ByteBuffer.wrap(d.data), d.to);
+                }
+                if (!queue.isEmpty() && queue.peek().due - now <= SPIN_NANOS) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+        catch (IOException e) {
+            if (running) {
+                System.out.println("ERROR: Proxy stopped. " + e.getMessage());
+            }
+        }
+        finally {
+            close();
+        }
+    }
+
+    private void fromClients() throws IOException {
+        InetSocketAddress source;
+        while ((source = receive(front)) != null) {
+            DatagramChannel back = clients.get(source);
+            if (back == null) {
+                if (clients.size() == MAX_CLIENTS) {
+                    continue;
+                }
+                back = DatagramChannel.open();
+                back.bind(new InetSocketAddress(0));
+                back.configureBlocking(false);
+                back.register(selector, SelectionKey.OP_READ, source);
+                clients.put(source, back);
+            }
+            enqueue(up, back, server);
+        }
+    }
+
+    private void fromServer(DatagramChannel back, InetSocketAddress client) throws IOException {
+        while (receive(back) != null) {
+            enqueue(down, front, client);
+        }
+    }
+
+    private InetSocketAddress receive(DatagramChannel channel) throws IOException {
+        buf.clear();
+        InetSocketAddress source = (InetSocketAddress) channel.receive(buf);
+        buf.flip();
+        return source;
+    }
+
+    // Schedules the packet in buf, arrival is taken as now
+    private void enqueue(Impairment path, DatagramChannel out, InetSocketAddress to) {
+        int copies = path.schedule(System.nanoTime(), due);
+        for (int i = 0; i < copies; i++) {
+            byte[] data = new byte[buf.remaining()];
+            buf.duplicate().get(data);
+            queue.add(new Delivery(due[i], order++, data, out, to));
+        }
+    }
+
+    private void close() {
+        try {
+            for (DatagramChannel back : clients.values()) {
+                back.close();
+            }
+            front.close();
+            selector.close();
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    public String toString() {
+        return up + "\n" + down;
+    }
+
+    // Standalone proxy in front of a running server, until killed
+    public static void main(String[] args) {
+        Config config = null;
+        InetSocketAddress server = null;
+        try {
+            config = Config.parse(args);
+            if (config.server == null) {
+                throw new IllegalArgumentException("--server is required");
+            }
+            server = Client.resolve(config.server);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            System.out.println(Config.USAGE);
+            System.exit(1);
+        }
+
+        try {
+            ImpairmentProxy proxy = new ImpairmentProxy(config.proxyPort, server,
+                    new Impairment("up  ", config, 0), new Impairment("down", config, 1));
+            proxy.start();
+            System.out.println("Impairment proxy on port " + config.proxyPort + " forwarding to " + server);
+
+            // The counters are only read for display, a line may be one packet behind
+            Timer statsTimer = new Timer(true);
+            statsTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    System.out.println(proxy);
+                }
+            }, STATS_INTERVAL * 1000, STATS_INTERVAL * 1000);
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: Socket error. " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package harness;
+
+import client.Packet;
+import client.SyncClock;
+
+// Server clock of a harness run: the system clock plus a fixed offset,
+// running fast or slow by ppm. Served through NanoClock.follow, and read
+// next to the client's disciplined clock it is the ground truth the offset
+// error is measured against.
+public class SkewedClock extends SyncClock {
+    private final long startNano;
+
+    private final long startEpochNanos;
+
+    private final double rate;
+
+    public SkewedClock(long offsetNanos, double ppm) {
+        this.startNano = System.nanoTime();
+        this.startEpochNanos = Packet.nowNanos() + offsetNanos;
+        this.rate = ppm * 1e-6;
+    }
+
+    @Override
+    public long nowNanos() {
+        long dt = System.nanoTime() - startNano;
+        return startEpochNanos + dt + Math.round(dt * rate);
+    }
+}
@@ -0,0 +1,197 @@
+package server;
+
+public class Config {
+    public final static String USAGE = "Usage: ./server [--mode=simple|nio] [--workers=N] [--measure]\n" +
+            "                [--rate=X] [--rate-burst=N] [--limiter-size=N] [--metrics-port=N] [--port=N]\n" +
+            "                [--upstream=<server>[,<server>...]] [--upstream-interval-ms=X] [--upstream-port=N]\n" +
+            "                [--multicast=<group>:<port>] [--multicast-interval-ms=X] [--multicast-ttl=N]\n" +
+            "                [--multicast-if=NAME] [--keys=FILE] [--require-auth] [--multicast-key=ID]\n" +
+            "                [--upstream-key=ID]";
+
+    // "simple" is the blocking DatagramSocket loop, "nio" the DatagramChannel engine
+    public String mode = "simple";
+
+    public int workers = Runtime.getRuntime().availableProcessors();
+
+    // Report server residence time distributions instead of per packet output
+    public boolean measure = false;
+
+    // Requests per second allowed from one source address, 0 leaves the
+    // limiter off
+    public double rate = 0;
+
+    public double rateBurst = 128;
+
+    // Source addresses tracked by the limiter, the least recently seen are evicted
+    public int limiterSize = 65536;
+
+    // Local HTTP port for Prometheus style metrics, 0 leaves only the JMX bean
+    public int metricsPort = 0;
+
+    public int port = 4011;
+
+    // Relay mode: servers to synchronize to, as for the client, null serves local time
+    public String upstream = null;
+
+    public double upstreamIntervalMs = 1000;
+
+    // Local port of the upstream session, 0 picks a free one
+    public int upstreamPort = 0;
+
+    // Multicast group and port to send time packets to, null sends none
+    public String multicast = null;
+
+    public double multicastIntervalMs = 1000;
+
+    public int multicastTtl = 1;
+
+    // Interface to send on, null picks the first multicast capable one
+    public String multicastIf = null;
+
+    // Symmetric keys for authenticated requests, null answers everything unauthenticated
+    public String keys = null;
+
+    // Drop requests without a MAC instead of answering them unauthenticated
+    public boolean requireAuth = false;
+
+    // Key ids from the key file to sign multicast packets and upstream requests with, 0 for none
+    public int multicastKey = 0;
+
+    public int upstreamKey = 0;
+
+    public static Config parse(String[] args) {
+        Config config = new Config();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + arg);
+            }
+
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+            String value = eq < 0 ? null : arg.substring(eq + 1);
+            config.set(name, value);
+        }
+
+        if (config.keys == null && (config.requireAuth || config.multicastKey > 0 || config.upstreamKey > 0)) {
+            throw new IllegalArgumentException("--require-auth, --multicast-key and --upstream-key need --keys");
+        }
+
+        return config;
+    }
+
+    private static String required(String name, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("--" + name + " needs a value");
+        }
+        return value;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "mode":
+                if (!"simple".equals(value) && !"nio".equals(value)) {
+                    throw new IllegalArgumentException("Unknown mode " + value);
+                }
+                mode = value;
+                break;
+            case "workers":
+                workers = Integer.parseInt(required(name, value));
+                if (workers < 1) {
+                    throw new IllegalArgumentException("--workers must be at least 1");
+                }
+                break;
+            case "measure":
+                measure = value == null || Boolean.parseBoolean(value);
+                break;
+            case "rate":
+                rate = Double.parseDouble(required(name, value));
+                if (!(rate >= 0)) {
+                    throw new IllegalArgumentException("--rate must not be negative");
+                }
+                break;
+            case "rate-burst":
+                rateBurst = Double.parseDouble(required(name, value));
+                if (!(rateBurst >= 1)) {
+                    throw new IllegalArgumentException("--rate-burst must be at least 1");
+                }
+                break;
+            case "limiter-size":
+                limiterSize = Integer.parseInt(required(name, value));
+                if (limiterSize < 1 || limiterSize > 1 << 24) {
+                    throw new IllegalArgumentException("--limiter-size must be between 1 and " + (1 << 24));
+                }
+                break;
+            case "metrics-port":
+                metricsPort = Integer.parseInt(required(name, value));
+                if (metricsPort < 0 || metricsPort > 65535) {
+                    throw new IllegalArgumentException("--metrics-port must be between 0 and 65535");
+                }
+                break;
+            case "port":
+                port = Integer.parseInt(required(name, value));
+                if (port < 1 || port > 65535) {
+                    throw new IllegalArgumentException("--port must be between 1 and 65535");
+                }
+                break;
+            case "upstream":
+                upstream = required(name, value);
+                break;
+            case "upstream-interval-ms":
+                upstreamIntervalMs = Double.parseDouble(required(name, value));
+                if (!(upstreamIntervalMs > 0)) {
+                    throw new IllegalArgumentException("--upstream-interval-ms must be positive");
+                }
+                break;
+            case "upstream-port":
+                upstreamPort = Integer.parseInt(required(name, value));
+                if (upstreamPort < 0 || upstreamPort > 65535) {
+                    throw new IllegalArgumentException("--upstream-port must be between 0 and 65535");
+                }
+                break;
+            case "multicast":
+                multicast = required(name, value);
+                int colon = multicast.lastIndexOf(':');
+                if (colon < 1) {
+                    throw new IllegalArgumentException("--multicast needs <group>:<port>");
+                }
+                Integer.parseInt(multicast.substring(colon + 1));
+                break;
+            case "multicast-interval-ms":
+                multicastIntervalMs = Double.parseDouble(required(name, value));
+                if (!(multicastIntervalMs > 0)) {
+                    throw new IllegalArgumentException("--multicast-interval-ms must be positive");
+                }
+                break;
+            case "multicast-ttl":
+                multicastTtl = Integer.parseInt(required(name, value));
+                if (multicastTtl < 0 || multicastTtl > 255) {
+                    throw new IllegalArgumentException("--multicast-ttl must be between 0 and 255");
+                }
+                break;
+            case "multicast-if":
+                multicastIf = required(name, value);
+                break;
+            case "keys":
+                keys = required(name, value);
+                break;
+            case "require-auth":
+                requireAuth = value == null || Boolean.parseBoolean(value);
+                break;
+            case "multicast-key":
+                multicastKey = Integer.parseInt(required(name, value));
+                if (multicastKey < 1) {
+                    throw new IllegalArgumentException("--multicast-key must be at least 1");
+                }
+                break;
+            case "upstream-key":
+                upstreamKey = Integer.parseInt(required(name, value));
+                if (upstreamKey < 1) {
+                    throw new IllegalArgumentException("--upstream-key must be at least 1");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+}
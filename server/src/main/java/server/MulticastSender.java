@@ -0,0 +1,90 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import client.Client;
+import client.Keys;
+
+// Multicast time distribution: one timestamped broadcast packet to the
+// group every interval, however many clients listen. Listeners calibrate
+// the one-way delay with occasional unicast exchanges and take their
+// offset from the stream. Deadlines are absolute, as in the client's
+// poll scheduler, so the stream does not drift.
+public class MulticastSender extends Thread {
+    private final InetSocketAddress group;
+
+    private final long intervalNanos;
+
+    private final ServerMetrics metrics;
+
+    private final DatagramChannel channel;
+
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(Keys.SIZE);
+
+    // Signs every packet when set, listeners with the key drop unsigned ones
+    private final Keys.Key key;
+
+    private int seq = 0;
+
+    public MulticastSender(InetSocketAddress group, String interfaceName, int ttl, double intervalMs,
+                           ServerMetrics metrics, Keys.Key key) throws IOException {
+        super("multicast-sender");
+        setDaemon(true);
+        this.group = group;
+        this.intervalNanos = Math.max(1L, Math.round(intervalMs * 1e6));
+        this.metrics = metrics;
+        this.key = key;
+
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, Client.multicastInterface(interfaceName));
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+        // Listeners on this host get the stream too
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+    }
+
+    public void run() {
+        long next = System.nanoTime();
+
+        while (true) {
+            long remaining;
+            while ((remaining = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            Packet.toBroadcast(buf, ++seq);
+            try {
+                // T3 as late as possible, right before the send
+                Packet.stampTransmit(buf, NanoClock.now());
+                if (key != null) {
+                    Keys.sign(key, buf);
+                }
+                buf.position(0);
+                buf.limit(key != null ? Keys.SIZE : Packet.SIZE);
+                channel.send(buf, group);
+                metrics.broadcasts.inc();
+            }
+            catch (IOException e) {
+                metrics.sendErrors.inc();
+                System.out.println("ERROR: Multicast send failed. " + e.getMessage());
+            }
+
+            next += intervalNanos;
+            long now = System.nanoTime();
+            if (next < now) {
+                next = now;
+            }
+        }
+    }
+
+    public String toString() {
+        InetAddress address = group.getAddress();
+        return address.getHostAddress() + ":" + group.getPort();
+    }
+}
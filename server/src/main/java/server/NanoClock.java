@@ -0,0 +1,35 @@
+package server;
+
+import java.time.Instant;
+
+import client.SyncClock;
+
+public class NanoClock {
+    // Wall clock minus System.nanoTime, so that reads are a single nanoTime call
+    private static volatile long offset;
+
+    // Disciplined clock of the relay's upstream session, null stamps from
+    // the system clock. Its reads are lock-free as well.
+    private static volatile SyncClock upstream;
+
+    static {
+        reanchor();
+    }
+
+    public static long now() {
+        SyncClock clock = upstream;
+        return clock == null ? System.nanoTime() + offset : clock.nowNanos();
+    }
+
+    // Relay mode, stamp every reply from clock from now on
+    public static void follow(SyncClock clock) {
+        upstream = clock;
+    }
+
+    // Re-reads the wall clock, call periodically to follow system clock adjustments
+    public static void reanchor() {
+        Instant wall = Instant.now();
+        long nano = System.nanoTime();
+        offset = wall.getEpochSecond() * 1_000_000_000L + wall.getNano() - nano;
+    }
+}
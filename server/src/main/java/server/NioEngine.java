@@ -0,0 +1,195 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import client.Keys;
+
+public class NioEngine {
+    private final static int BUFFER_SIZE = 1024;
+
+    private final static int STATS_INTERVAL = 10;
+
+    private final int port;
+
+    private final int workers;
+
+    private final DatagramChannel[] channels;
+
+    // Null unless --measure
+    private final ResidenceStats unreported;
+
+    private final RateLimiter limiter;
+
+    private final ServerMetrics metrics;
+
+    // Null answers every request unauthenticated
+    private final Keys keys;
+
+    private final boolean requireAuth;
+
+    private final Thread[] threads;
+
+    private Timer statsTimer;
+
+    private volatile boolean running = true;
+
+    public NioEngine(int port, int workers, RateLimiter limiter, ServerMetrics metrics,
+                     ResidenceStats unreported) {
+        this(port, workers, limiter, metrics, unreported, null, false);
+    }
+
+    public NioEngine(int port, int workers, RateLimiter limiter, ServerMetrics metrics,
+                     ResidenceStats unreported, Keys keys, boolean requireAuth) {
+        this.keys = keys;
+        this.requireAuth = requireAuth;
+        this.metrics = metrics;
+        this.port = port;
+        this.unreported = unreported;
+        this.limiter = limiter;
+        this.workers = workers;
+        this.channels = new DatagramChannel[workers];
+        this.threads = new Thread[workers];
+    }
+
+    // Each worker gets its own SO_REUSEPORT socket so the kernel spreads
+    // datagrams across them, otherwise all workers share one channel.
+    private void open() throws IOException {
+        DatagramChannel first = DatagramChannel.open();
+        boolean reusePort = workers > 1
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+
+        if (!reusePort) {
+            first.bind(new InetSocketAddress(port));
+            for (int i = 0; i < workers; i++) {
+                channels[i] = first;
+            }
+            return;
+        }
+
+        for (int i = 0; i < workers; i++) {
+            DatagramChannel channel = i == 0 ? first : DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(port));
+            channels[i] = channel;
+        }
+    }
+
+    public void start() throws IOException {
+        open();
+
+        for (int i = 0; i < workers; i++) {
+            final DatagramChannel channel = channels[i];
+            threads[i] = new Thread(() -> work(channel), "nio-worker-" + i);
+            threads[i].start();
+        }
+
+        statsTimer = new Timer(true);
+        statsTimer.scheduleAtFixedRate(new TimerTask() {
+            private long last = 0;
+
+            @Override
+            public void run() {
+                long total = metrics.requests.get();
+                System.out.format("%d\t %d req/s\t send errors %d%s\n",
+                        total, (total - last) / STATS_INTERVAL, metrics.sendErrors.get(),
+                        limiter == null ? "" : "\t " + limiter);
+                last = total;
+            }
+        }, STATS_INTERVAL * 1000, STATS_INTERVAL * 1000);
+    }
+
+    // Closes the channels, which wakes the workers from receive, and waits
+    // for them to exit
+    public void stop() throws IOException {
+        running = false;
+        if (statsTimer != null) {
+            statsTimer.cancel();
+        }
+        for (DatagramChannel channel : channels) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        for (Thread worker : threads) {
+            if (worker == null) {
+                continue;
+            }
+            try {
+                worker.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void work(DatagramChannel channel) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        while (running) {
+            InetSocketAddress source;
+            long receiveNanos;
+            try {
+                buf.clear();
+                source = (InetSocketAddress) channel.receive(buf);
+                receiveNanos = NanoClock.now();
+            }
+            catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+                metrics.receiveErrors.inc();
+                System.out.println("ERROR: " + e.getMessage());
+                continue;
+            }
+
+            metrics.requests.inc();
+            int kind = Responder.respond(buf, buf.position(), receiveNanos, limiter, source.getAddress(),
+                    keys, requireAuth);
+            if (kind == Responder.UNAUTHENTICATED) {
+                metrics.unauthenticated.inc();
+                continue;
+            }
+            if (kind == Responder.DROP) {
+                metrics.parseErrors.inc();
+                continue;
+            }
+            if (kind == Responder.LIMITED) {
+                metrics.limited.inc();
+                continue;
+            }
+
+            long transmitNanos = NanoClock.now();
+            try {
+                if (kind == Responder.BINARY) {
+                    Packet.stampTransmit(buf, transmitNanos);
+                }
+                Responder.sign(buf, kind, keys);
+                // Replies go back to the address and port the request came from
+                channel.send(buf, source);
+            }
+            catch (IOException e) {
+                metrics.sendErrors.inc();
+                continue;
+            }
+
+            if (kind == Responder.KISS) {
+                metrics.kisses.inc();
+                continue;
+            }
+            metrics.replies.inc();
+            metrics.residence.record(transmitNanos - receiveNanos);
+
+            if (unreported != null) {
+                unreported.record(NanoClock.now() - transmitNanos);
+            }
+        }
+    }
+}
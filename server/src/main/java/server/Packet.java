@@ -0,0 +1,100 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+public class Packet {
+    public final static int SIZE = 48;
+
+    public final static byte VERSION = 1;
+
+    public final static byte MODE_REQUEST = 1;
+
+    public final static byte MODE_RESPONSE = 2;
+
+    // Unsolicited multicast time packet, only seq and transmit are set
+    public final static byte MODE_BROADCAST = 5;
+
+    public final static byte STRATUM = 1;
+
+    // Stratum 0 marks a kiss-o'-death reply, the reference field holds the code
+    public final static byte STRATUM_KISS = 0;
+
+    // Advertised by a relay until it has synchronized to its upstream servers
+    public final static byte STRATUM_UNSYNCHRONIZED = 16;
+
+    public final static int KISS_RATE = 0x52415445; // "RATE"
+
+    // Field offsets, all values big-endian
+    public final static int VERSION_OFFSET = 0;
+
+    public final static int MODE_OFFSET = 1;
+
+    public final static int STRATUM_OFFSET = 2;
+
+    public final static int FLAGS_OFFSET = 3;
+
+    public final static int SEQ_OFFSET = 4;
+
+    // Root delay and dispersion in microseconds
+    public final static int ROOT_DELAY_OFFSET = 8;
+
+    public final static int ROOT_DISPERSION_OFFSET = 12;
+
+    // Timestamps in nanoseconds since epoch
+    public final static int ORIGIN_OFFSET = 16;
+
+    public final static int RECEIVE_OFFSET = 24;
+
+    public final static int TRANSMIT_OFFSET = 32;
+
+    public final static int REFERENCE_OFFSET = 40;
+
+    // Text requests start with an ASCII digit so they never carry the version byte
+    public static boolean isRequest(ByteBuffer buf, int length) {
+        return length >= SIZE
+                && buf.get(VERSION_OFFSET) == VERSION
+                && buf.get(MODE_OFFSET) == MODE_REQUEST;
+    }
+
+    // Turns the request in buf into a response in place, keeping seq and origin
+    public static void toResponse(ByteBuffer buf, long receiveNanos) {
+        Reference reference = Reference.current();
+        buf.put(MODE_OFFSET, MODE_RESPONSE);
+        buf.put(STRATUM_OFFSET, reference.stratum);
+        buf.putInt(ROOT_DELAY_OFFSET, reference.rootDelayMicros);
+        buf.putInt(ROOT_DISPERSION_OFFSET, reference.rootDispersionMicros);
+        buf.putLong(RECEIVE_OFFSET, receiveNanos);
+    }
+
+    // Turns the request in buf into a "slow down" reply. It carries no
+    // timestamps, so it costs nothing beyond the request it answers.
+    public static void toKiss(ByteBuffer buf, int code) {
+        buf.put(MODE_OFFSET, MODE_RESPONSE);
+        buf.put(STRATUM_OFFSET, STRATUM_KISS);
+        buf.putInt(ROOT_DELAY_OFFSET, 0);
+        buf.putInt(ROOT_DISPERSION_OFFSET, 0);
+        buf.putLong(RECEIVE_OFFSET, 0L);
+        buf.putLong(TRANSMIT_OFFSET, 0L);
+        buf.putLong(REFERENCE_OFFSET, (long) code << 32);
+    }
+
+    // Builds a multicast time packet in buf, seq counts the packets sent
+    public static void toBroadcast(ByteBuffer buf, int seq) {
+        Reference reference = Reference.current();
+        buf.put(VERSION_OFFSET, VERSION);
+        buf.put(MODE_OFFSET, MODE_BROADCAST);
+        buf.put(STRATUM_OFFSET, reference.stratum);
+        buf.put(FLAGS_OFFSET, (byte) 0);
+        buf.putInt(SEQ_OFFSET, seq);
+        buf.putInt(ROOT_DELAY_OFFSET, reference.rootDelayMicros);
+        buf.putInt(ROOT_DISPERSION_OFFSET, reference.rootDispersionMicros);
+        buf.putLong(ORIGIN_OFFSET, 0L);
+        buf.putLong(RECEIVE_OFFSET, 0L);
+        buf.putLong(TRANSMIT_OFFSET, 0L);
+        buf.putLong(REFERENCE_OFFSET, 0L);
+    }
+
+    public static void stampTransmit(ByteBuffer buf, long transmitNanos) {
+        buf.putLong(TRANSMIT_OFFSET, transmitNanos);
+    }
+}
@@ -0,0 +1,162 @@
+package server;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-source token buckets in a fixed size table, so a flood from many
+// (possibly spoofed) addresses costs bounded memory. The table is split
+// into sets of WAYS entries, each set guarded by one of STRIPES locks, and
+// a full set evicts with the clock algorithm: recently seen entries get a
+// second chance, idle ones are replaced.
+public class RateLimiter {
+    public final static int PASS = 0;
+
+    // Over the limit, answer with a rate kiss
+    public final static int KISS = 1;
+
+    // Over the limit and already kissed recently, stay silent
+    public final static int DROP = 2;
+
+    private final static int WAYS = 8;
+
+    private final static int STRIPES = 64;
+
+    private final static long EMPTY = -1L;
+
+    // At most one kiss per source per second, the rest are dropped
+    private final static long KISS_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final double ratePerNano;
+
+    private final double burst;
+
+    private final int setShift;
+
+    private final Object[] locks = new Object[STRIPES];
+
+    private final long[] keys;
+
+    private final double[] tokens;
+
+    private final long[] lastNanos;
+
+    private final long[] kissNanos;
+
+    private final boolean[] referenced;
+
+    private final int[] hands;
+
+    private final AtomicLong kissed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong evicted = new AtomicLong();
+
+    // rate in requests per second, size is rounded up to a power of two
+    public RateLimiter(double rate, double burst, int size) {
+        this.ratePerNano = rate / 1e9;
+        this.burst = Math.max(1, burst);
+
+        int entries = Integer.highestOneBit(Math.max(WAYS, size));
+        if (entries < size) {
+            entries <<= 1;
+        }
+        int sets = entries / WAYS;
+        this.setShift = 64 - Integer.numberOfTrailingZeros(sets);
+
+        this.keys = new long[entries];
+        this.tokens = new double[entries];
+        this.lastNanos = new long[entries];
+        this.kissNanos = new long[entries];
+        this.referenced = new boolean[entries];
+        this.hands = new int[sets];
+        Arrays.fill(keys, EMPTY);
+
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    // Inet4Address hashes to its address, so IPv4 keys are exact. IPv6
+    // sources sharing a 32 bit hash share a bucket.
+    private static long key(InetAddress address) {
+        long family = address instanceof Inet6Address ? 1L << 32 : 0;
+        return family | (address.hashCode() & 0xffffffffL);
+    }
+
+    public int check(InetAddress address, long nowNanos) {
+        long key = key(address);
+        int set = setShift == 64 ? 0 : (int) ((key * 0x9E3779B97F4A7C15L) >>> setShift);
+        int base = set * WAYS;
+
+        synchronized (locks[set & (STRIPES - 1)]) {
+            int slot = find(base, key);
+            if (slot < 0) {
+                slot = evict(set, base);
+                keys[slot] = key;
+                tokens[slot] = burst;
+                lastNanos[slot] = nowNanos;
+                kissNanos[slot] = nowNanos - KISS_INTERVAL_NANOS;
+            }
+            else {
+                long elapsed = Math.max(0, nowNanos - lastNanos[slot]);
+                tokens[slot] = Math.min(burst, tokens[slot] + elapsed * ratePerNano);
+                lastNanos[slot] = nowNanos;
+            }
+            referenced[slot] = true;
+
+            if (tokens[slot] >= 1) {
+                tokens[slot] -= 1;
+                return PASS;
+            }
+            if (nowNanos - kissNanos[slot] >= KISS_INTERVAL_NANOS) {
+                kissNanos[slot] = nowNanos;
+                kissed.incrementAndGet();
+                return KISS;
+            }
+        }
+
+        dropped.incrementAndGet();
+        return DROP;
+    }
+
+    private int find(int base, long key) {
+        for (int i = base; i < base + WAYS; i++) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Clock sweep over the set, the first empty or unreferenced entry goes
+    private int evict(int set, int base) {
+        int hand = hands[set];
+        while (true) {
+            int slot = base + hand;
+            hand = (hand + 1) & (WAYS - 1);
+
+            if (keys[slot] == EMPTY) {
+                hands[set] = hand;
+                return slot;
+            }
+            if (!referenced[slot]) {
+                hands[set] = hand;
+                evicted.incrementAndGet();
+                return slot;
+            }
+            referenced[slot] = false;
+        }
+    }
+
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    public String toString() {
+        return String.format("limited: kissed %d dropped %d evicted %d",
+                kissed.get(), dropped.get(), evicted.get());
+    }
+}
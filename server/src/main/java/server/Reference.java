@@ -0,0 +1,41 @@
+package server;
+
+// What replies advertise about the server's own time source: its stratum
+// and its root delay and dispersion to the primary source. Published as an
+// immutable object so the reply path reads all three with one volatile
+// load, the relay replaces it about once a second.
+public class Reference {
+    // Primary server stamping from the local system clock
+    public final static Reference LOCAL = new Reference(Packet.STRATUM, 0, 0);
+
+    // Relay that has not synchronized to its upstream servers yet
+    public final static Reference UNSYNCHRONIZED = new Reference(Packet.STRATUM_UNSYNCHRONIZED, 0, 0);
+
+    private static volatile Reference current = LOCAL;
+
+    public final byte stratum;
+
+    // Microseconds, as carried in the packet
+    public final int rootDelayMicros;
+
+    public final int rootDispersionMicros;
+
+    public Reference(int stratum, int rootDelayMicros, int rootDispersionMicros) {
+        this.stratum = (byte) stratum;
+        this.rootDelayMicros = rootDelayMicros;
+        this.rootDispersionMicros = rootDispersionMicros;
+    }
+
+    public static Reference current() {
+        return current;
+    }
+
+    public static void set(Reference reference) {
+        current = reference;
+    }
+
+    public String toString() {
+        return String.format("stratum %d root delay %d us root dispersion %d us",
+                stratum, rootDelayMicros, rootDispersionMicros);
+    }
+}
@@ -0,0 +1,103 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import client.Client;
+import client.ClientReceiver;
+import client.Peer;
+
+// Relay (stratum 2) mode. An embedded client session polls the upstream
+// servers through the client's own filter, selection and discipline, and
+// every reply is stamped from its disciplined clock instead of the system
+// clock. The advertised stratum and root delay/dispersion follow the
+// upstream server with the smallest root distance.
+public class Relay {
+    private final static long REFERENCE_INTERVAL_MS = 1000;
+
+    // One below unsynchronized, the relay itself has to stay usable
+    private final static int MAX_UPSTREAM_STRATUM = Packet.STRATUM_UNSYNCHRONIZED - 2;
+
+    private final client.Config upstream;
+
+    private final Client session;
+
+    private ClientReceiver receiver;
+
+    public Relay(Config config) {
+        List<String> args = new ArrayList<>(Arrays.asList(
+                config.upstream,
+                "--port=" + config.upstreamPort,
+                "--interval-ms=" + config.upstreamIntervalMs,
+                "--quiet"));
+        if (config.upstreamKey > 0) {
+            args.add("--keys=" + config.keys);
+            args.add("--key=" + config.upstreamKey);
+        }
+        this.upstream = client.Config.parse(args.toArray(new String[0]));
+        this.session = new Client(upstream);
+    }
+
+    public void start() {
+        // Until the first upstream sample replies say not to use them
+        Reference.set(Reference.UNSYNCHRONIZED);
+        NanoClock.follow(session.clock);
+
+        session.startMetrics(0);
+        receiver = session.start(upstream);
+
+        Timer referenceTimer = new Timer("relay-reference", true);
+        referenceTimer.scheduleAtFixedRate(new TimerTask() {
+            private int stratum = Reference.UNSYNCHRONIZED.stratum;
+
+            @Override
+            public void run() {
+                Reference reference = reference();
+                Reference.set(reference);
+                if (reference.stratum != stratum) {
+                    stratum = reference.stratum;
+                    System.out.println("Relay now serving " + reference);
+                }
+            }
+        }, REFERENCE_INTERVAL_MS, REFERENCE_INTERVAL_MS);
+
+        // Flushes the upstream session's log.txt and report.log on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> session.stop(receiver), "relay-shutdown"));
+    }
+
+    // Runs on the timer thread while the session's receive thread updates
+    // the peers, so a value may be one sample behind
+    private Reference reference() {
+        if (!session.clock.isSynced()) {
+            return Reference.UNSYNCHRONIZED;
+        }
+
+        long now = client.Packet.nowNanos();
+        Peer best = null;
+        double bestDistance = Double.MAX_VALUE;
+        for (Peer peer : session.peers) {
+            if (peer.filter.isEmpty() || peer.stratum < 1 || peer.stratum > MAX_UPSTREAM_STRATUM) {
+                continue;
+            }
+            double distance = peer.distance(now);
+            if (distance < bestDistance) {
+                best = peer;
+                bestDistance = distance;
+            }
+        }
+        if (best == null) {
+            return Reference.UNSYNCHRONIZED;
+        }
+
+        double rootDelay = best.rootDelay + best.filter.delay();
+        double rootDispersion = best.rootDispersion + best.filter.dispersion(now) + best.filter.jitter();
+        return new Reference(best.stratum + 1, micros(rootDelay), micros(rootDispersion));
+    }
+
+    private static int micros(double seconds) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, Math.round(seconds * 1e6)));
+    }
+}
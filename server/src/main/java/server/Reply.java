@@ -0,0 +1,13 @@
+package server;
+
+// One answered request, queued from the reply path to the log writer
+public class Reply {
+    public final int packetNo;
+
+    public final long transmitNanos;
+
+    public Reply(int packetNo, long transmitNanos) {
+        this.packetNo = packetNo;
+        this.transmitNanos = transmitNanos;
+    }
+}
@@ -0,0 +1,120 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import client.Metrics;
+
+// Residence times in log-linear buckets. The counts only grow: the live
+// metrics read them as a summary, and drain() reports the interval since
+// the previous drain. Buckets are LongAdders so receive threads recording
+// the same bucket do not contend.
+public class ResidenceStats implements Metrics.Summary {
+    // Log-linear buckets with 4 sub-buckets per power of two
+    private final static int BUCKETS = 248;
+
+    private final static double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final String name;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    private final LongAdder sum = new LongAdder();
+
+    // Counts at the previous drain
+    private final long[] drained = new long[BUCKETS];
+
+    public ResidenceStats(String name) {
+        this.name = name;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        counts[bucket(nanos)].increment();
+        sum.add(nanos);
+    }
+
+    static int bucket(long v) {
+        if (v < 4) {
+            return (int) Math.max(v, 0);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) ((v >>> (exp - 2)) & 3);
+        return (exp - 1) * 4 + sub;
+    }
+
+    static long upperBound(int idx) {
+        if (idx < 4) {
+            return idx;
+        }
+        int exp = idx / 4 + 1;
+        int sub = idx % 4;
+        return ((4L + sub) << (exp - 2)) + (1L << (exp - 2)) - 1;
+    }
+
+    // Bucket holding the value of rank, 1 based
+    private static int bucketAtRank(long[] snapshot, long rank) {
+        long seen = 0;
+        int idx = 0;
+        while (idx < BUCKETS - 1 && seen + snapshot[idx] < rank) {
+            seen += snapshot[idx++];
+        }
+        return idx;
+    }
+
+    @Override
+    public long count() {
+        long total = 0;
+        for (LongAdder count : counts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public double sum() {
+        return sum.sum() / 1e9;
+    }
+
+    // Upper bound of the bucket in seconds
+    @Override
+    public double quantile(double q) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        return upperBound(bucketAtRank(snapshot, Math.max(1, (long) Math.ceil(q * total)))) / 1e9;
+    }
+
+    // Returns a one line summary in microseconds of the values recorded
+    // since the previous call
+    public synchronized String drain() {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        int maxIdx = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts[i].sum();
+            snapshot[i] = count - drained[i];
+            drained[i] = count;
+            total += snapshot[i];
+            if (snapshot[i] > 0) {
+                maxIdx = i;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(String.format("%-12s n=%-8d", name, total));
+        for (double pct : PERCENTILES) {
+            long rank = (long) Math.ceil(pct / 100 * total);
+            sb.append(String.format(" p%-4s<=%9.3f", String.valueOf(pct).replace(".0", ""),
+                    total == 0 ? 0 : upperBound(bucketAtRank(snapshot, rank)) / 1e3));
+        }
+        sb.append(String.format(" max<=%9.3f us", total == 0 ? 0 : upperBound(maxIdx) / 1e3));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,127 @@
+package server;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import client.Keys;
+
+public class Responder {
+    public final static int DROP = -1;
+
+    // Over the rate limit and not worth a kiss
+    public final static int LIMITED = -2;
+
+    // Bad MAC, unknown key, or no MAC when one is required
+    public final static int UNAUTHENTICATED = -3;
+
+    // Binary reply, the caller stamps T3 immediately before sending
+    public final static int BINARY = 0;
+
+    // Text reply, T3 is already formatted into the message
+    public final static int TEXT = 1;
+
+    // Kiss-o'-death reply, sent as is
+    public final static int KISS = 2;
+
+    // Checks the source against the limiter first, over the limit the reply
+    // is a rate kiss or nothing (LIMITED).
+    public static int respond(ByteBuffer buf, int length, long receiveNanos,
+                              RateLimiter limiter, InetAddress source) {
+        return respond(buf, length, receiveNanos, limiter, source, null, false);
+    }
+
+    // With keys, a binary request that carries a MAC is only answered when
+    // the MAC is right, and one without only when auth is not required.
+    // The MAC is checked after the limiter, so a flood of forged requests
+    // costs no more than the limiter lets through. The reply to an
+    // authenticated request, a kiss included, ends at Keys.SIZE with the
+    // request's key id still in place, see sign().
+    public static int respond(ByteBuffer buf, int length, long receiveNanos,
+                              RateLimiter limiter, InetAddress source, Keys keys, boolean requireAuth) {
+        int verdict = limiter == null ? RateLimiter.PASS : limiter.check(source, receiveNanos);
+        if (verdict != RateLimiter.PASS && verdict != RateLimiter.KISS) {
+            return LIMITED;
+        }
+
+        boolean authenticated = false;
+        if (keys != null) {
+            if (length >= Keys.SIZE && Packet.isRequest(buf, length)) {
+                if (keys.verify(buf, length) == null) {
+                    return UNAUTHENTICATED;
+                }
+                authenticated = true;
+            }
+            else if (requireAuth) {
+                return UNAUTHENTICATED;
+            }
+        }
+
+        int kind;
+        if (verdict == RateLimiter.PASS) {
+            kind = respond(buf, length, receiveNanos);
+        }
+        else {
+            kind = kiss(buf, length);
+            if (kind == DROP) {
+                return LIMITED;
+            }
+        }
+        if (authenticated) {
+            buf.limit(Keys.SIZE);
+        }
+        return kind;
+    }
+
+    // Signs the reply in buf with the key of the request it answers, if
+    // that request was authenticated. Called once T3 is stamped, the MAC
+    // covers it.
+    public static void sign(ByteBuffer buf, int kind, Keys keys) {
+        if (keys != null && kind != TEXT && buf.limit() == Keys.SIZE) {
+            Keys.sign(keys.get(buf.getInt(Keys.KEY_ID_OFFSET)), buf);
+        }
+    }
+
+    // Builds the reply for the request held in buf[0, length) back into buf.
+    // On return buf is positioned at 0 with its limit at the end of the reply.
+    public static int respond(ByteBuffer buf, int length, long receiveNanos) {
+        if (Packet.isRequest(buf, length)) {
+            Packet.toResponse(buf, receiveNanos);
+            buf.limit(Packet.SIZE);
+            buf.position(0);
+            return BINARY;
+        }
+
+        // Legacy text request, works on both heap and direct buffers
+        byte[] req = new byte[length];
+        buf.position(0);
+        buf.get(req, 0, length);
+        String msg = new String(req, StandardCharsets.US_ASCII).trim();
+
+        String synchReponseMsg = msg + " " + String.format("%.6f", receiveNanos / 1e9);
+        synchReponseMsg += " " + String.format("%.6f", NanoClock.now() / 1e9);
+
+        byte[] resp = synchReponseMsg.getBytes(StandardCharsets.US_ASCII);
+        if (resp.length > buf.capacity()) {
+            return DROP;
+        }
+
+        buf.clear();
+        buf.put(resp);
+        buf.flip();
+        return TEXT;
+    }
+
+    // Builds a rate kiss for a binary request, text requests have no way to
+    // carry one and are dropped.
+    public static int kiss(ByteBuffer buf, int length) {
+        if (!Packet.isRequest(buf, length)) {
+            return DROP;
+        }
+
+        Packet.toKiss(buf, Packet.KISS_RATE);
+        buf.limit(Packet.SIZE);
+        buf.position(0);
+        return KISS;
+    }
+}
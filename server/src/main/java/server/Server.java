@@ -2,26 +2,47 @@ package server;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
-import java.time.Instant;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import client.AsyncLog;
+import client.Keys;
+import client.MetricsServer;
 
 public class Server {
 
     private DatagramSocket serverSocket;
 
-    private final static int SERVER_PORT = 4011;
+    private final static int MEASURE_INTERVAL = 10;
+
+    private final static int REANCHOR_INTERVAL = 60;
 
-    private final static int CLIENT_PORT = 4012;
+    private final static int LOG_CAPACITY = 8192;
 
     private final SimpleDateFormat sdf = new SimpleDateFormat("MM-dd-yyyy HH:mm:ss.S");
 
-    public static int packetRecvd = 0;
+    private int packetRecvd = 0;
+
+    private ResidenceStats unreported;
+
+    private RateLimiter limiter;
+
+    private ServerMetrics metrics;
 
-    public Server() {
+    private Keys keys;
+
+    private boolean requireAuth;
+
+    private final AsyncLog<Reply> log = new AsyncLog<>("server-log", null, true, LOG_CAPACITY, this::format);
+
+    public Server(int port) {
         try {
-            this.serverSocket = new DatagramSocket(SERVER_PORT);
+            this.serverSocket = new DatagramSocket(port);
         }
         catch (SocketException e) {
             System.out.println("ERROR: Socket error. " + e.getMessage());
@@ -64,54 +85,223 @@ public class Server {
     }
 
     private void listen() {
-        String msg;
+        byte[] buf = new byte[1024];
+        ByteBuffer reqBuf = ByteBuffer.wrap(buf);
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
 
         while (true) {
-            byte[] buf = new byte[1024];
-            DatagramPacket p = new DatagramPacket(buf, buf.length);
+            p.setData(buf, 0, buf.length);
 
+            long receiveNanos;
             try {
                 serverSocket.receive(p);
+                receiveNanos = NanoClock.now();
             }
             catch (IOException e) {
+                metrics.receiveErrors.inc();
                 System.out.println("ERROR: " + e.getMessage());
                 continue;
             }
 
-            msg = new String(p.getData()).trim();
-            double receiveSecondsSinceEpoch = Instant.now().toEpochMilli() / 1000d;
-            String synchReponseMsg = msg + " " + String.format("%.6f", receiveSecondsSinceEpoch);
-            double currSecondsSinceEpoch = Instant.now().toEpochMilli() / 1000d;
-            synchReponseMsg += " " + String.format("%.6f", currSecondsSinceEpoch);
-
-            DatagramPacket resp = new DatagramPacket(synchReponseMsg.getBytes(),
-                                                     synchReponseMsg.getBytes().length,
-                                                     p.getAddress(),
-                                                     CLIENT_PORT);
-
-            String currentStat = String.format("%d\t %f\t\t %s",
-                   ++packetRecvd,
-                   currSecondsSinceEpoch,
-                    sdf.format(new Date((long)(currSecondsSinceEpoch * 1000d))));
+            metrics.requests.inc();
+            reqBuf.clear();
+            int kind = Responder.respond(reqBuf, p.getLength(), receiveNanos, limiter, p.getAddress(),
+                    keys, requireAuth);
+            if (kind == Responder.UNAUTHENTICATED) {
+                metrics.unauthenticated.inc();
+                continue;
+            }
+            if (kind == Responder.DROP) {
+                metrics.parseErrors.inc();
+                continue;
+            }
+            if (kind == Responder.LIMITED) {
+                metrics.limited.inc();
+                continue;
+            }
 
-            System.out.println(currentStat);
+            // The reply is written over the request buffer and goes back to
+            // the source address and port of the request
+            p.setData(buf, 0, reqBuf.limit());
 
+            long transmitNanos = NanoClock.now();
             try {
-                this.serverSocket.send(resp);
+                if (kind == Responder.BINARY) {
+                    Packet.stampTransmit(reqBuf, transmitNanos);
+                }
+                Responder.sign(reqBuf, kind, keys);
+                this.serverSocket.send(p);
             }
             catch (IOException e) {
+                metrics.sendErrors.inc();
                 System.out.println("ERROR: " + e.getMessage());
+                continue;
             }
+
+            if (kind == Responder.KISS) {
+                metrics.kisses.inc();
+                continue;
+            }
+            metrics.replies.inc();
+            metrics.residence.record(transmitNanos - receiveNanos);
+
+            if (unreported != null) {
+                unreported.record(NanoClock.now() - transmitNanos);
+                continue;
+            }
+
+            log.log(new Reply(++packetRecvd, transmitNanos));
         }
     }
 
+    // Runs on the log writer thread
+    private void format(Reply r, StringBuilder out) {
+        double currSecondsSinceEpoch = r.transmitNanos / 1e9;
+        out.append(String.format("%d\t %f\t\t %s\n",
+                r.packetNo,
+                currSecondsSinceEpoch,
+                sdf.format(new Date(r.transmitNanos / 1_000_000L))));
+    }
+
+    // Prints the residence time distributions instead of per packet lines.
+    // "reported" is T3 - T2 as carried in the reply, "unreported" is the time
+    // from the T3 stamp until send() returns, which the client never sees.
+    private static void startMeasuring(final ResidenceStats reported, final ResidenceStats unreported,
+                                       final RateLimiter limiter) {
+        Timer measureTimer = new Timer(true);
+        measureTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                System.out.println(reported.drain());
+                System.out.println(unreported.drain());
+                if (limiter != null) {
+                    System.out.println(limiter);
+                }
+            }
+        }, MEASURE_INTERVAL * 1000, MEASURE_INTERVAL * 1000);
+    }
+
     public static void main(String[] args) {
-        Server server = new Server();
+        Config config = null;
+        try {
+            config = Config.parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            System.out.println(Config.USAGE);
+            System.exit(1);
+        }
+
+        // Keep the nanoTime based clock following the system clock
+        Timer anchorTimer = new Timer(true);
+        anchorTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                NanoClock.reanchor();
+            }
+        }, REANCHOR_INTERVAL * 1000, REANCHOR_INTERVAL * 1000);
+
+        Keys keys = null;
+        if (config.keys != null) {
+            try {
+                keys = Keys.load(Paths.get(config.keys));
+                for (int id : new int[] {config.multicastKey, config.upstreamKey}) {
+                    if (id > 0 && keys.get(id) == null) {
+                        throw new IllegalArgumentException("No key " + id);
+                    }
+                }
+            }
+            catch (IOException | IllegalArgumentException e) {
+                System.out.println("ERROR: Cannot load keys from " + config.keys + ". " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        RateLimiter limiter = null;
+        if (config.rate > 0) {
+            limiter = new RateLimiter(config.rate, config.rateBurst, config.limiterSize);
+        }
+
+        // Always counted, --metrics-port also serves them over HTTP
+        ServerMetrics metrics = new ServerMetrics(limiter);
+        MetricsServer metricsServer = new MetricsServer(metrics.registry);
+        metricsServer.registerMBean("server:type=Metrics");
+        if (config.metricsPort > 0) {
+            try {
+                metricsServer.startHttp(config.metricsPort);
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: Cannot serve metrics on port " + config.metricsPort + ". " + e.getMessage());
+            }
+        }
+
+        if (config.upstream != null) {
+            try {
+                new Relay(config).start();
+            }
+            catch (IllegalArgumentException e) {
+                System.out.println("ERROR: Bad --upstream. " + e.getMessage());
+                System.out.println(Config.USAGE);
+                System.exit(1);
+            }
+            System.out.println("Relaying time from " + config.upstream);
+        }
+
+        if (config.multicast != null) {
+            int colon = config.multicast.lastIndexOf(':');
+            try {
+                InetAddress group = InetAddress.getByName(config.multicast.substring(0, colon));
+                if (!group.isMulticastAddress()) {
+                    throw new IOException(group.getHostAddress() + " is not a multicast group");
+                }
+                MulticastSender sender = new MulticastSender(
+                        new InetSocketAddress(group, Integer.parseInt(config.multicast.substring(colon + 1))),
+                        config.multicastIf, config.multicastTtl, config.multicastIntervalMs, metrics,
+                        config.multicastKey > 0 ? keys.get(config.multicastKey) : null);
+                sender.start();
+                System.out.println("Multicasting time to " + sender);
+            }
+            catch (IOException | IllegalArgumentException e) {
+                System.out.println("ERROR: Cannot multicast to " + config.multicast + ". " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        ResidenceStats unreported = null;
+        if (config.measure) {
+            unreported = new ResidenceStats("unreported");
+            startMeasuring(metrics.residence, unreported, limiter);
+        }
+
+        if ("nio".equals(config.mode)) {
+            NioEngine engine = new NioEngine(config.port, config.workers, limiter, metrics, unreported,
+                    keys, config.requireAuth);
+            try {
+                engine.start();
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: Socket error. " + e.getMessage());
+                System.exit(1);
+            }
+            System.out.println("UDP server started with " + config.workers + " NIO workers...");
+            System.out.println("IP Address: " + getAddress());
+            System.out.println("Requests\t Rate\n" +
+                               "---------------------------------------------------------------------");
+            return;
+        }
+
+        Server server = new Server(config.port);
+        server.unreported = unreported;
+        server.limiter = limiter;
+        server.metrics = metrics;
+        server.keys = keys;
+        server.requireAuth = config.requireAuth;
         System.out.println("UDP server started...");
         System.out.println("IP Address: " + getAddress());
         String header = "Packet\t Current Time (s since epoch)\t Current Time\n" +
                         "---------------------------------------------------------------------";
         System.out.println(header);
+        server.log.start();
         server.listen();
     }
 }
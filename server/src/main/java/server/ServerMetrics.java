@@ -0,0 +1,37 @@
+package server;
+
+import client.Metrics;
+
+// The live metrics of the server, shared by all receive threads
+public class ServerMetrics {
+    public final Metrics registry = new Metrics("clock_server_");
+
+    public final Metrics.Counter requests = registry.counter("requests_total", "Datagrams received");
+
+    public final Metrics.Counter replies = registry.counter("replies_total", "Time replies sent");
+
+    public final Metrics.Counter broadcasts = registry.counter("broadcasts_total", "Multicast time packets sent");
+
+    public final Metrics.Counter kisses = registry.counter("rate_kisses_total", "Rate kisses sent");
+
+    public final Metrics.Counter limited = registry.counter("rate_limited_total", "Requests dropped by the rate limiter");
+
+    public final Metrics.Counter unauthenticated = registry.counter("unauthenticated_total",
+            "Requests dropped for a missing or bad MAC");
+
+    public final Metrics.Counter parseErrors = registry.counter("parse_errors_total", "Requests that could not be answered");
+
+    public final Metrics.Counter receiveErrors = registry.counter("receive_errors_total", "Failed receives");
+
+    public final Metrics.Counter sendErrors = registry.counter("send_errors_total", "Failed sends");
+
+    // T3 - T2 of every reply, also printed by --measure as "reported"
+    public final ResidenceStats residence = new ResidenceStats("reported");
+
+    public ServerMetrics(RateLimiter limiter) {
+        registry.summary("residence_seconds", "Time from receive to the T3 stamp", residence);
+        if (limiter != null) {
+            registry.gauge("rate_limiter_evictions", "Sources evicted from the limiter table", limiter::getEvicted);
+        }
+    }
+}
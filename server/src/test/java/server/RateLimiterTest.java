@@ -0,0 +1,137 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+    private final static long SECOND = 1_000_000_000L;
+
+    private final static long T0 = 5 * SECOND;
+
+    private static InetAddress address(int i) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i});
+    }
+
+    @Test
+    public void burstPassesBackToBackThenKissesOnceThenDrops() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1, 4, 64);
+        InetAddress source = address(1);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(RateLimiter.PASS, limiter.check(source, T0));
+        }
+        assertEquals(RateLimiter.KISS, limiter.check(source, T0));
+        assertEquals(RateLimiter.DROP, limiter.check(source, T0));
+        assertEquals(RateLimiter.DROP, limiter.check(source, T0 + 1));
+    }
+
+    @Test
+    public void burstBelowOneStillLetsOneRequestThrough() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1, 0, 64);
+        assertEquals(RateLimiter.PASS, limiter.check(address(1), T0));
+        assertEquals(RateLimiter.KISS, limiter.check(address(1), T0));
+    }
+
+    @Test
+    public void kissesAtMostOncePerSecond() throws UnknownHostException {
+        // Slow enough that no token comes back during the test
+        RateLimiter limiter = new RateLimiter(0.001, 1, 64);
+        InetAddress source = address(1);
+        assertEquals(RateLimiter.PASS, limiter.check(source, T0));
+        assertEquals(RateLimiter.KISS, limiter.check(source, T0));
+        assertEquals(RateLimiter.DROP, limiter.check(source, T0 + SECOND - 1));
+        assertEquals(RateLimiter.KISS, limiter.check(source, T0 + SECOND));
+        assertEquals(RateLimiter.DROP, limiter.check(source, T0 + SECOND + 1));
+    }
+
+    @Test
+    public void tokenRefillsAfterOneInterval() throws UnknownHostException {
+        // 10 per second, one token every 100 ms
+        RateLimiter early = new RateLimiter(10, 1, 64);
+        assertEquals(RateLimiter.PASS, early.check(address(1), T0));
+        assertEquals(RateLimiter.KISS, early.check(address(1), T0 + 100_000_000L - 1000));
+
+        RateLimiter late = new RateLimiter(10, 1, 64);
+        assertEquals(RateLimiter.PASS, late.check(address(1), T0));
+        assertEquals(RateLimiter.PASS, late.check(address(1), T0 + 100_000_000L + 1000));
+    }
+
+    @Test
+    public void refillIsCappedAtBurst() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(10, 3, 64);
+        InetAddress source = address(1);
+        assertEquals(RateLimiter.PASS, limiter.check(source, T0));
+
+        // An hour idle earns no more than the burst
+        long later = T0 + 3600 * SECOND;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(RateLimiter.PASS, limiter.check(source, later));
+        }
+        assertEquals(RateLimiter.KISS, limiter.check(source, later));
+    }
+
+    @Test
+    public void clockGoingBackwardsEarnsNothing() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(10, 1, 64);
+        InetAddress source = address(1);
+        assertEquals(RateLimiter.PASS, limiter.check(source, T0));
+        assertEquals(RateLimiter.DROP, limiter.check(source, T0 - SECOND));
+    }
+
+    @Test
+    public void sourcesHaveSeparateBuckets() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1, 1, 64);
+        assertEquals(RateLimiter.PASS, limiter.check(address(1), T0));
+        assertEquals(RateLimiter.PASS, limiter.check(address(2), T0));
+        assertEquals(RateLimiter.KISS, limiter.check(address(1), T0));
+        assertEquals(RateLimiter.KISS, limiter.check(address(2), T0));
+    }
+
+    @Test
+    public void fullSetEvictsAndTheEvictedSourceStartsOver() throws UnknownHostException {
+        // The smallest table is a single set of 8 ways
+        RateLimiter limiter = new RateLimiter(0.001, 1, 1);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(RateLimiter.PASS, limiter.check(address(i), T0));
+        }
+        assertEquals(0, limiter.getEvicted());
+        assertEquals(RateLimiter.KISS, limiter.check(address(0), T0));
+
+        // All 8 entries are referenced, the sweep clears them and comes
+        // back round to the first slot, source 0
+        assertEquals(RateLimiter.PASS, limiter.check(address(8), T0));
+        assertEquals(1, limiter.getEvicted());
+        assertEquals(RateLimiter.PASS, limiter.check(address(0), T0));
+        assertEquals(2, limiter.getEvicted());
+    }
+
+    @Test
+    public void recentlySeenSourceGetsSecondChance() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(0.001, 1, 8);
+        for (int i = 0; i < 8; i++) {
+            limiter.check(address(i), T0);
+        }
+        // Evicts source 0 and leaves the hand on source 1 with every
+        // reference bit cleared
+        limiter.check(address(8), T0);
+
+        // Source 1 is seen again, so the next newcomer takes source 2's slot
+        assertEquals(RateLimiter.KISS, limiter.check(address(1), T0));
+        limiter.check(address(9), T0);
+        assertEquals(2, limiter.getEvicted());
+        assertEquals(RateLimiter.DROP, limiter.check(address(1), T0));
+        assertEquals(RateLimiter.PASS, limiter.check(address(2), T0));
+    }
+
+    @Test
+    public void tableNeverGrowsPastItsSize() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1, 1, 8);
+        for (int i = 0; i < 100; i++) {
+            limiter.check(address(i), T0);
+        }
+        assertEquals(92, limiter.getEvicted());
+    }
+}